@@ -0,0 +1,54 @@
+package br.com.caelum.pm73.carga;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latncias das execues bem-sucedidas de uma operao, mais as contagens de
+ * conflitos de trava e de erros.
+ */
+public class EstatisticasDaOperacao {
+
+	private final HistogramaDeLatencias latencias = new HistogramaDeLatencias();
+	private final AtomicLong conflitos = new AtomicLong();
+	private final AtomicLong erros = new AtomicLong();
+
+	void sucesso(long microssegundos) {
+		latencias.registra(microssegundos);
+	}
+
+	void conflito() {
+		conflitos.incrementAndGet();
+	}
+
+	void erro() {
+		erros.incrementAndGet();
+	}
+
+	public HistogramaDeLatencias getLatencias() {
+		return latencias;
+	}
+
+	public long getSucessos() {
+		return latencias.getTotal();
+	}
+
+	public long getConflitos() {
+		return conflitos.get();
+	}
+
+	public long getErros() {
+		return erros.get();
+	}
+
+	public long getTotal() {
+		return getSucessos() + getConflitos() + getErros();
+	}
+
+	/**
+	 * Conflitos e erros sobre o total de execues, em porcentagem.
+	 */
+	public double getTaxaDeFalha() {
+		long total = getTotal();
+		return total == 0 ? 0.0 : 100.0 * (getConflitos() + getErros()) / total;
+	}
+}
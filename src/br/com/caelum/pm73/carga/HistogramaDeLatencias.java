@@ -0,0 +1,93 @@
+package br.com.caelum.pm73.carga;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latncias em microssegundos, no estilo do HdrHistogram: at
+ * 128 us cada valor tem seu prprio balde; acima disso, cada potncia de dois
+ *  dividida em 64 baldes. O erro relativo fica abaixo de 1,6% em qualquer
+ * faixa, com memria fixa e sem guardar as amostras.
+ *
+ * Pode ser alimentado por vrias threads ao mesmo tempo.
+ */
+public class HistogramaDeLatencias {
+
+	private static final int EXATOS = 128;
+	private static final int BALDES_POR_POTENCIA = 64;
+	private static final int BITS_POR_POTENCIA = 6;
+	private static final int MAIOR_EXPOENTE = 62;
+
+	private final AtomicLongArray contagens = new AtomicLongArray(
+			EXATOS + (MAIOR_EXPOENTE - 6) * BALDES_POR_POTENCIA);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong soma = new AtomicLong();
+	private final AtomicLong maximo = new AtomicLong();
+
+	public void registra(long microssegundos) {
+		long valor = Math.max(0, microssegundos);
+		contagens.incrementAndGet(balde(valor));
+		total.incrementAndGet();
+		soma.addAndGet(valor);
+
+		long atual = maximo.get();
+		while (valor > atual && !maximo.compareAndSet(atual, valor)) {
+			atual = maximo.get();
+		}
+	}
+
+	public long getTotal() {
+		return total.get();
+	}
+
+	public long getMaximo() {
+		return maximo.get();
+	}
+
+	public double getMedia() {
+		long quantidade = total.get();
+		return quantidade == 0 ? 0.0 : (double) soma.get() / quantidade;
+	}
+
+	/**
+	 * O menor valor tal que pelo menos "percentil" por cento das amostras so
+	 * menores ou iguais a ele, arredondado para o topo do balde (e limitado ao
+	 * mximo registrado).
+	 */
+	public long percentil(double percentil) {
+		long quantidade = total.get();
+		if (quantidade == 0) {
+			return 0;
+		}
+
+		long alvo = Math.max(1, (long) Math.ceil(quantidade * percentil / 100.0));
+		long acumulado = 0;
+		for (int i = 0; i < contagens.length(); i++) {
+			acumulado += contagens.get(i);
+			if (acumulado >= alvo) {
+				return Math.min(topoDoBalde(i), maximo.get());
+			}
+		}
+		return maximo.get();
+	}
+
+	static int balde(long valor) {
+		if (valor < EXATOS) {
+			return (int) valor;
+		}
+		int expoente = 63 - Long.numberOfLeadingZeros(valor);
+		int deslocamento = expoente - BITS_POR_POTENCIA;
+		int mantissa = (int) (valor >>> deslocamento) - BALDES_POR_POTENCIA;
+		return EXATOS + (expoente - 7) * BALDES_POR_POTENCIA + mantissa;
+	}
+
+	static long topoDoBalde(int balde) {
+		if (balde < EXATOS) {
+			return balde;
+		}
+		int expoente = 7 + (balde - EXATOS) / BALDES_POR_POTENCIA;
+		long mantissa = BALDES_POR_POTENCIA + (balde - EXATOS) % BALDES_POR_POTENCIA;
+		int deslocamento = expoente - BITS_POR_POTENCIA;
+		return ((mantissa + 1) << deslocamento) - 1;
+	}
+}
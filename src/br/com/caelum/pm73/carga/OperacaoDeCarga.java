@@ -0,0 +1,32 @@
+package br.com.caelum.pm73.carga;
+
+/**
+ * As operaes que o {@link SimuladorDeCarga} sorteia para cada licitante.
+ */
+public enum OperacaoDeCarga {
+
+	/**
+	 * Um lance num leilo: adicionaLance seguido de LeilaoDao.salvaLance.
+	 */
+	LANCE,
+
+	/**
+	 * LeilaoDao.porId.
+	 */
+	POR_ID,
+
+	/**
+	 * LeilaoDao.novos, que traz todos os leiles de itens novos.
+	 */
+	NOVOS,
+
+	/**
+	 * LeilaoDao.total.
+	 */
+	TOTAL,
+
+	/**
+	 * LeilaoDao.encerra de um nico leilo.
+	 */
+	ENCERRAMENTO
+}
@@ -0,0 +1,364 @@
+package br.com.caelum.pm73.carga;
+
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.PessimisticLockException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.LockAcquisitionException;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.LeilaoBuilder;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Teste de carga da camada de persistncia: vrias threads de licitantes
+ * sorteiam operaes, segundo os pesos configurados, sobre leiles em que uma
+ * parte pequena ("quentes") recebe a maior parte do trfego.
+ *
+ * Cada operao roda na sua prpria sesso e transao. No fim, cada
+ * operao tem a vazo, os percentis de latncia, os conflitos de trava
+ * (deadlock, timeout de trava, verso velha) e os demais erros.
+ *
+ * Uso: SimuladorDeCarga [chave=valor ...], com as chaves url, threads,
+ * segundos, leiloes, quentes, fracaoQuente, usuarios e o peso de cada
+ * operao (lance, por_id, novos, total, encerramento). O banco indicado na
+ * url  recriado; o padro  um HSQLDB em memria.
+ */
+@SuppressWarnings("deprecation")
+public class SimuladorDeCarga {
+
+	private final SessionFactory fabrica;
+	private final Map<OperacaoDeCarga, Integer> pesos = new EnumMap<OperacaoDeCarga, Integer>(OperacaoDeCarga.class);
+
+	private int threads = 16;
+	private long duracaoEmMillis = TimeUnit.SECONDS.toMillis(10);
+	private int leiloes = 1000;
+	private int leiloesQuentes = 10;
+	private double fracaoQuente = 0.8;
+	private int usuarios = 200;
+
+	private int[] idsDosLeiloes;
+	private int[] idsDosUsuarios;
+	private long duracaoDaUltimaExecucaoEmMillis;
+
+	public SimuladorDeCarga(SessionFactory fabrica) {
+		this.fabrica = fabrica;
+		pesos.put(OperacaoDeCarga.LANCE, 60);
+		pesos.put(OperacaoDeCarga.POR_ID, 20);
+		pesos.put(OperacaoDeCarga.NOVOS, 5);
+		pesos.put(OperacaoDeCarga.TOTAL, 10);
+		pesos.put(OperacaoDeCarga.ENCERRAMENTO, 5);
+	}
+
+	public SimuladorDeCarga comThreads(int threads) {
+		this.threads = threads;
+		return this;
+	}
+
+	public SimuladorDeCarga comDuracao(long duracao, TimeUnit unidade) {
+		this.duracaoEmMillis = unidade.toMillis(duracao);
+		return this;
+	}
+
+	/*
+	 * "fracaoQuente" das operaes cai nos primeiros "quentes" leiles; o resto
+	 * se espalha por todos.
+	 */
+	public SimuladorDeCarga comLeiloes(int leiloes, int quentes, double fracaoQuente) {
+		if (quentes <= 0 || quentes > leiloes || fracaoQuente < 0 || fracaoQuente > 1) {
+			throw new IllegalArgumentException("Distribuio de leiles quentes invlida");
+		}
+		this.leiloes = leiloes;
+		this.leiloesQuentes = quentes;
+		this.fracaoQuente = fracaoQuente;
+		return this;
+	}
+
+	public SimuladorDeCarga comUsuarios(int usuarios) {
+		this.usuarios = usuarios;
+		return this;
+	}
+
+	public SimuladorDeCarga comPeso(OperacaoDeCarga operacao, int peso) {
+		if (peso < 0) {
+			throw new IllegalArgumentException("O peso no pode ser negativo");
+		}
+		pesos.put(operacao, peso);
+		return this;
+	}
+
+	/**
+	 * Cria os usurios e leiles e roda a carga pela durao configurada.
+	 *
+	 * @throws IllegalStateException
+	 *             se todas as operaes estiverem com peso zero
+	 */
+	public Map<OperacaoDeCarga, EstatisticasDaOperacao> executa() throws InterruptedException {
+		// validamos antes de popular: dentro das threads o erro s mataria o licitante
+		final int totalDosPesos = totalDosPesos();
+		if (totalDosPesos == 0) {
+			throw new IllegalStateException("Pelo menos uma operao precisa de peso maior que zero");
+		}
+		popula();
+
+		final Map<OperacaoDeCarga, EstatisticasDaOperacao> estatisticas = new EnumMap<OperacaoDeCarga, EstatisticasDaOperacao>(
+				OperacaoDeCarga.class);
+		for (OperacaoDeCarga operacao : OperacaoDeCarga.values()) {
+			estatisticas.put(operacao, new EstatisticasDaOperacao());
+		}
+
+		final CountDownLatch largada = new CountDownLatch(1);
+		final long fim = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duracaoEmMillis);
+		Thread[] licitantes = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final Random sorteio = new Random(i);
+			licitantes[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						largada.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					while (System.nanoTime() < fim) {
+						OperacaoDeCarga operacao = sorteiaOperacao(sorteio, totalDosPesos);
+						EstatisticasDaOperacao estatistica = estatisticas.get(operacao);
+						long inicio = System.nanoTime();
+						try {
+							executa(operacao, sorteio);
+							estatistica.sucesso(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - inicio));
+						} catch (RuntimeException e) {
+							if (ehConflito(e)) {
+								estatistica.conflito();
+							} else {
+								estatistica.erro();
+							}
+						}
+					}
+				}
+			}, "licitante-" + i);
+			licitantes[i].start();
+		}
+
+		long inicio = System.nanoTime();
+		largada.countDown();
+		for (Thread licitante : licitantes) {
+			licitante.join();
+		}
+		duracaoDaUltimaExecucaoEmMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio);
+		return estatisticas;
+	}
+
+	/**
+	 * Quanto a ltima carga realmente durou, sem contar a criao dos dados.
+	 */
+	public long getDuracaoDaUltimaExecucaoEmMillis() {
+		return duracaoDaUltimaExecucaoEmMillis;
+	}
+
+	private void popula() {
+		Session session = fabrica.openSession();
+		try {
+			session.beginTransaction();
+
+			idsDosUsuarios = new int[usuarios];
+			for (int i = 0; i < usuarios; i++) {
+				Usuario usuario = new Usuario("Licitante " + i, "licitante" + i + "@carga.com.br");
+				session.save(usuario);
+				idsDosUsuarios[i] = usuario.getId();
+			}
+
+			LeilaoDao dao = new LeilaoDao(session);
+			Usuario dono = (Usuario) session.load(Usuario.class, idsDosUsuarios[0]);
+			idsDosLeiloes = new int[leiloes];
+			for (int i = 0; i < leiloes; i++) {
+				LeilaoBuilder builder = new LeilaoBuilder().comDono(dono).comNome("Leilo " + i).comValor(100.0 + i);
+				if (i % 2 == 1) {
+					builder.usado();
+				}
+				Leilao leilao = builder.constroi();
+				dao.salvar(leilao);
+				idsDosLeiloes[i] = leilao.getId();
+			}
+
+			session.getTransaction().commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	private void executa(OperacaoDeCarga operacao, Random sorteio) {
+		Session session = fabrica.openSession();
+		try {
+			session.beginTransaction();
+			LeilaoDao dao = new LeilaoDao(session);
+
+			switch (operacao) {
+			case LANCE:
+				Leilao leilao = (Leilao) session.load(Leilao.class, sorteiaLeilao(sorteio));
+				Usuario usuario = (Usuario) session.load(Usuario.class,
+						idsDosUsuarios[sorteio.nextInt(idsDosUsuarios.length)]);
+				Lance lance = leilao.adicionaLance(new Lance(Calendar.getInstance(), usuario,
+						100.0 + sorteio.nextInt(10000), leilao));
+				dao.salvaLance(lance);
+				break;
+			case POR_ID:
+				dao.porId(sorteiaLeilao(sorteio));
+				break;
+			case NOVOS:
+				dao.novos();
+				break;
+			case TOTAL:
+				dao.total();
+				break;
+			case ENCERRAMENTO:
+				dao.encerra(Collections.singletonList(sorteiaLeilao(sorteio)));
+				break;
+			}
+
+			session.getTransaction().commit();
+		} catch (RuntimeException e) {
+			if (session.getTransaction().isActive()) {
+				session.getTransaction().rollback();
+			}
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	private int totalDosPesos() {
+		int total = 0;
+		for (int peso : pesos.values()) {
+			total += peso;
+		}
+		return total;
+	}
+
+	private OperacaoDeCarga sorteiaOperacao(Random sorteio, int totalDosPesos) {
+		int sorteado = sorteio.nextInt(totalDosPesos);
+		for (Map.Entry<OperacaoDeCarga, Integer> peso : pesos.entrySet()) {
+			sorteado -= peso.getValue();
+			if (sorteado < 0) {
+				return peso.getKey();
+			}
+		}
+		throw new IllegalStateException("Nenhuma operao com peso");
+	}
+
+	private int sorteiaLeilao(Random sorteio) {
+		if (sorteio.nextDouble() < fracaoQuente) {
+			return idsDosLeiloes[sorteio.nextInt(leiloesQuentes)];
+		}
+		return idsDosLeiloes[sorteio.nextInt(idsDosLeiloes.length)];
+	}
+
+	/*
+	 * Deadlocks, timeouts de trava e verses velhas so conflitos de
+	 * concorrncia; os cdigos SQLSTATE da classe 40 so rollbacks de transao.
+	 */
+	static boolean ehConflito(Throwable erro) {
+		for (Throwable causa = erro; causa != null; causa = causa.getCause()) {
+			if (causa instanceof LockAcquisitionException || causa instanceof PessimisticLockException
+					|| causa instanceof StaleStateException) {
+				return true;
+			}
+			if (causa instanceof SQLException) {
+				String estado = ((SQLException) causa).getSQLState();
+				if (estado != null && estado.startsWith("40")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public static void imprime(Map<OperacaoDeCarga, EstatisticasDaOperacao> estatisticas, long duracaoEmMillis,
+			PrintStream saida) {
+		double segundos = duracaoEmMillis / 1000.0;
+		saida.println(String.format("%-13s %9s %9s %9s %9s %9s %9s %9s %9s %7s %7s", "operao", "total",
+				"ops/s", "mdia ms", "p50 ms", "p90 ms", "p99 ms", "p99,9 ms", "mx ms", "confl.", "% falha"));
+
+		long total = 0;
+		for (Map.Entry<OperacaoDeCarga, EstatisticasDaOperacao> entrada : estatisticas.entrySet()) {
+			EstatisticasDaOperacao estatistica = entrada.getValue();
+			HistogramaDeLatencias latencias = estatistica.getLatencias();
+			total += estatistica.getSucessos();
+
+			saida.println(String.format("%-13s %9d %9.1f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f %7d %7.2f",
+					entrada.getKey(), estatistica.getTotal(), estatistica.getSucessos() / segundos,
+					latencias.getMedia() / 1000.0, latencias.percentil(50) / 1000.0,
+					latencias.percentil(90) / 1000.0, latencias.percentil(99) / 1000.0,
+					latencias.percentil(99.9) / 1000.0, latencias.getMaximo() / 1000.0, estatistica.getConflitos(),
+					estatistica.getTaxaDeFalha()));
+		}
+		saida.println(String.format("vazo total: %.1f operaes bem-sucedidas por segundo", total / segundos));
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		String url = "jdbc:hsqldb:mem:carga";
+		int threads = 16;
+		int segundos = 10;
+		int leiloes = 1000;
+		int quentes = 10;
+		double fracaoQuente = 0.8;
+		int usuarios = 200;
+		Map<OperacaoDeCarga, Integer> pesos = new EnumMap<OperacaoDeCarga, Integer>(OperacaoDeCarga.class);
+
+		for (String argumento : args) {
+			String[] chaveEValor = argumento.split("=", 2);
+			if (chaveEValor.length != 2) {
+				throw new IllegalArgumentException("Use chave=valor: " + argumento);
+			}
+			String chave = chaveEValor[0];
+			String valor = chaveEValor[1];
+
+			if (chave.equals("url")) {
+				url = valor;
+			} else if (chave.equals("threads")) {
+				threads = Integer.parseInt(valor);
+			} else if (chave.equals("segundos")) {
+				segundos = Integer.parseInt(valor);
+			} else if (chave.equals("leiloes")) {
+				leiloes = Integer.parseInt(valor);
+			} else if (chave.equals("quentes")) {
+				quentes = Integer.parseInt(valor);
+			} else if (chave.equals("fracaoQuente")) {
+				fracaoQuente = Double.parseDouble(valor);
+			} else if (chave.equals("usuarios")) {
+				usuarios = Integer.parseInt(valor);
+			} else {
+				pesos.put(OperacaoDeCarga.valueOf(chave.toUpperCase()), Integer.parseInt(valor));
+			}
+		}
+
+		SessionFactory fabrica = new CriadorDeSessao().criaConfig(url)
+				.setProperty("hibernate.hbm2ddl.auto", "create").setProperty("hibernate.show_sql", "false")
+				.setProperty("hibernate.connection.pool_size", String.valueOf(threads)).buildSessionFactory();
+		try {
+			SimuladorDeCarga simulador = new SimuladorDeCarga(fabrica).comThreads(threads)
+					.comDuracao(segundos, TimeUnit.SECONDS).comLeiloes(leiloes, quentes, fracaoQuente)
+					.comUsuarios(usuarios);
+			for (Map.Entry<OperacaoDeCarga, Integer> peso : pesos.entrySet()) {
+				simulador.comPeso(peso.getKey(), peso.getValue());
+			}
+
+			Map<OperacaoDeCarga, EstatisticasDaOperacao> estatisticas = simulador.executa();
+			imprime(estatisticas, simulador.getDuracaoDaUltimaExecucaoEmMillis(), System.out);
+		} finally {
+			fabrica.close();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package br.com.caelum.pm73.curso;
+
+import java.util.Calendar;
+import java.util.List;
+
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.LeilaoBuilder;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Compara o heap e o tempo de uma leitura grande numa sesso comum e numa
+ * sesso somente leitura. Roda num banco em memria, sem mexer no caelum.db.
+ *
+ * Uso: MedeSomenteLeitura [leiles] [lances por leilo] [rodadas]
+ */
+@SuppressWarnings("deprecation")
+public class MedeSomenteLeitura {
+
+	private static final String URL = "jdbc:hsqldb:mem:mede-somente-leitura";
+
+	public static void main(String[] args) {
+		int leiloes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int lancesPorLeilao = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int rodadas = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		CriadorDeSessao criador = new CriadorDeSessao();
+		SessionFactory comum = criador.criaConfig(URL).setProperty("hibernate.hbm2ddl.auto", "create")
+				.setProperty("hibernate.show_sql", "false").buildSessionFactory();
+		SessionFactory somenteLeitura = criador.criaConfigSomenteLeitura(URL)
+				.setProperty("hibernate.show_sql", "false").buildSessionFactory();
+
+		try {
+			popula(comum, leiloes, lancesPorLeilao);
+
+			// a primeira rodada de cada modo s aquece a JVM
+			mede(comum, false, 1);
+			mede(somenteLeitura, true, 1);
+
+			Medida normal = mede(comum, false, rodadas);
+			Medida leitura = mede(somenteLeitura, true, rodadas);
+
+			System.out.println(String.format("%d leiles com %d lances cada, mdia de %d rodadas", leiloes,
+					lancesPorLeilao, rodadas));
+			System.out.println(String.format("%-16s %12s %12s", "sesso", "tempo (ms)", "heap (KB)"));
+			System.out.println(String.format("%-16s %12.1f %12d", "comum", normal.millis, normal.heap / 1024));
+			System.out.println(String.format("%-16s %12.1f %12d", "somente leitura", leitura.millis,
+					leitura.heap / 1024));
+		} finally {
+			somenteLeitura.close();
+			comum.close();
+		}
+	}
+
+	private static void popula(SessionFactory fabrica, int leiloes, int lancesPorLeilao) {
+		Session session = fabrica.openSession();
+		session.beginTransaction();
+
+		Usuario dono = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		Usuario comprador = new Usuario("Marcelo Ribeiro", "marcelo@ribeiro.com.br");
+		session.save(dono);
+		session.save(comprador);
+
+		LeilaoDao dao = new LeilaoDao(session);
+		for (int i = 0; i < leiloes; i++) {
+			LeilaoBuilder builder = new LeilaoBuilder().comDono(dono).comNome("Leilo " + i).comValor(100.0 + i);
+			for (int j = 0; j < lancesPorLeilao; j++) {
+				builder.comLance(Calendar.getInstance(), comprador, 200.0 + j);
+			}
+			dao.salvar(builder.constroi());
+
+			if (i % 100 == 0) {
+				session.flush();
+				session.clear();
+			}
+		}
+
+		session.getTransaction().commit();
+		session.close();
+	}
+
+	/*
+	 * Carrega todos os leiles com seus lances e, com tudo ainda na sesso, faz
+	 * mais uma consulta e o commit, que numa sesso comum disparam o dirty
+	 * checking de cada entidade. O heap  medido antes de fechar a sesso.
+	 */
+	private static Medida mede(SessionFactory fabrica, boolean modoSomenteLeitura, int rodadas) {
+		long totalDeNanos = 0;
+		long totalDeHeap = 0;
+
+		for (int i = 0; i < rodadas; i++) {
+			long heapAntes = heapUsado();
+			long inicio = System.nanoTime();
+
+			Session session = fabrica.openSession();
+			if (modoSomenteLeitura) {
+				CriadorDeSessao.somenteLeitura(session);
+			}
+			session.beginTransaction();
+
+			LeilaoDao dao = new LeilaoDao(session);
+			List<Leilao> leiloes = dao.novos();
+			for (Leilao leilao : leiloes) {
+				Hibernate.initialize(leilao.getLances());
+			}
+			dao.total();
+			session.getTransaction().commit();
+
+			totalDeNanos += System.nanoTime() - inicio;
+			totalDeHeap += heapUsado() - heapAntes;
+			session.close();
+		}
+
+		return new Medida(totalDeNanos / 1e6 / rodadas, totalDeHeap / rodadas);
+	}
+
+	private static long heapUsado() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static class Medida {
+		final double millis;
+		final long heap;
+
+		Medida(double millis, long heap) {
+			this.millis = millis;
+			this.heap = heap;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package br.com.caelum.pm73.dao;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+/**
+ * Agenda uma ao para depois do commit da transao corrente da sesso. Se a
+ * transao for desfeita, a ao  descartada; se no houver transao ativa,
+ * a ao roda na hora.
+ */
+class AposCommit {
+
+	private AposCommit() {
+	}
+
+	static void executa(Session session, final Runnable acao) {
+		Transaction transacao = session.getTransaction();
+		if (transacao == null || !transacao.isActive()) {
+			acao.run();
+			return;
+		}
+
+		transacao.registerSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					acao.run();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,106 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lembra, por uma "janela" de tempo, qual lance foi gravado para cada chave de
+ * idempotncia enviada pelos clientes. Uma nova tentativa com a mesma chave 
+ * respondida daqui, sem abrir sesso nem transao.
+ *
+ * As entradas ficam na ordem em que foram guardadas, que  tambm a ordem em
+ * que expiram: cada {@link #guarda} descarta as expiradas do comeo e, passando
+ * da "capacidade", a mais antiga. Quem sai do cache ainda  achado no banco
+ * pela restrio nica de Lance.chaveDeIdempotencia.
+ */
+public class CacheDeIdempotencia {
+
+	private final int capacidade;
+	private final long janelaEmMillis;
+
+	private final LinkedHashMap<String, Entrada> porChave = new LinkedHashMap<String, Entrada>();
+
+	private long acertos;
+	private long faltas;
+	private long despejos;
+
+	public CacheDeIdempotencia(int capacidade, long janela, TimeUnit unidade) {
+		if (capacidade <= 0 || janela <= 0) {
+			throw new IllegalArgumentException("Configurao invlida para o cache de idempotncia");
+		}
+		this.capacidade = capacidade;
+		this.janelaEmMillis = unidade.toMillis(janela);
+	}
+
+	/**
+	 * @return o id do lance gravado com essa chave, ou null se o cache no sabe
+	 *         responder
+	 */
+	public synchronized Integer lanceDe(String chave) {
+		Entrada entrada = porChave.get(chave);
+		if (entrada == null || entrada.expiraEm <= agora()) {
+			if (entrada != null) {
+				porChave.remove(chave);
+			}
+			faltas++;
+			return null;
+		}
+		acertos++;
+		return entrada.lanceId;
+	}
+
+	public synchronized void guarda(String chave, int lanceId) {
+		long agora = agora();
+		porChave.remove(chave);
+		porChave.put(chave, new Entrada(lanceId, agora + janelaEmMillis));
+
+		Iterator<Map.Entry<String, Entrada>> maisAntigas = porChave.entrySet().iterator();
+		while (maisAntigas.hasNext()) {
+			Entrada entrada = maisAntigas.next().getValue();
+			if (entrada.expiraEm <= agora) {
+				maisAntigas.remove();
+			} else if (porChave.size() > capacidade) {
+				maisAntigas.remove();
+				despejos++;
+			} else {
+				break;
+			}
+		}
+	}
+
+	public synchronized void limpa() {
+		porChave.clear();
+	}
+
+	public synchronized int getTamanho() {
+		return porChave.size();
+	}
+
+	public synchronized long getAcertos() {
+		return acertos;
+	}
+
+	public synchronized long getFaltas() {
+		return faltas;
+	}
+
+	public synchronized long getDespejos() {
+		return despejos;
+	}
+
+	protected long agora() {
+		return System.currentTimeMillis();
+	}
+
+	private static class Entrada {
+		private final int lanceId;
+		private final long expiraEm;
+
+		Entrada(int lanceId, long expiraEm) {
+			this.lanceId = lanceId;
+			this.expiraEm = expiraEm;
+		}
+	}
+}
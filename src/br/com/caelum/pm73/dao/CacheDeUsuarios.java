@@ -0,0 +1,158 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache da chave natural (nome, email) para o id do usurio, usado por
+ * {@link UsuarioDao#porNomeEEmail(String, String)}.
+ *
+ * Guardamos s o id: com ele o DAO busca o usurio pela chave primria, sem
+ * rodar a HQL. Usurios inexistentes tambm so guardados, mas por pouco tempo
+ * ("ttlNegativo"), j que podem ser cadastrados por outra sesso a qualquer
+ * momento. Passando da "capacidade", descartamos a entrada usada h mais tempo.
+ */
+public class CacheDeUsuarios {
+
+	/**
+	 * Devolvido por {@link #idDe(String, String)} quando sabemos que o usurio
+	 * no existe.
+	 */
+	public static final int INEXISTENTE = -1;
+
+	private final int capacidade;
+	private final long ttlPositivoEmMillis;
+	private final long ttlNegativoEmMillis;
+
+	private final Map<String, Entrada> porChave;
+	private final Map<Integer, String> chavePorId = new HashMap<Integer, String>();
+
+	private long acertos;
+	private long faltas;
+	private long despejos;
+
+	public CacheDeUsuarios(int capacidade, long ttlPositivo, long ttlNegativo, TimeUnit unidade) {
+		if (capacidade <= 0) {
+			throw new IllegalArgumentException("A capacidade do cache deve ser positiva");
+		}
+		this.capacidade = capacidade;
+		this.ttlPositivoEmMillis = unidade.toMillis(ttlPositivo);
+		this.ttlNegativoEmMillis = unidade.toMillis(ttlNegativo);
+		this.porChave = new LinkedHashMap<String, Entrada>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entrada> maisAntiga) {
+				if (size() <= CacheDeUsuarios.this.capacidade) {
+					return false;
+				}
+				chavePorId.remove(maisAntiga.getValue().id);
+				despejos++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return o id do usurio, {@link #INEXISTENTE} se sabemos que ele no
+	 *         existe, ou null se o cache no sabe responder
+	 */
+	public synchronized Integer idDe(String nome, String email) {
+		String chave = chave(nome, email);
+		Entrada entrada = porChave.get(chave);
+		if (entrada == null || entrada.expiraEm <= agora()) {
+			if (entrada != null) {
+				remove(chave, entrada);
+			}
+			faltas++;
+			return null;
+		}
+		acertos++;
+		return entrada.id;
+	}
+
+	public synchronized void guarda(String nome, String email, int id) {
+		String chave = chave(nome, email);
+		String chaveAnterior = chavePorId.put(id, chave);
+		if (chaveAnterior != null && !chaveAnterior.equals(chave)) {
+			porChave.remove(chaveAnterior);
+		}
+		porChave.put(chave, new Entrada(id, agora() + ttlPositivoEmMillis));
+	}
+
+	public synchronized void guardaInexistente(String nome, String email) {
+		porChave.put(chave(nome, email), new Entrada(INEXISTENTE, agora() + ttlNegativoEmMillis));
+	}
+
+	public synchronized void invalida(String nome, String email) {
+		String chave = chave(nome, email);
+		Entrada entrada = porChave.get(chave);
+		if (entrada != null) {
+			remove(chave, entrada);
+		}
+	}
+
+	/**
+	 * Remove a entrada do usurio, qualquer que seja o nome e email com que ele
+	 * foi guardado. til quando o nome ou o email acabaram de mudar.
+	 */
+	public synchronized void invalidaId(int id) {
+		String chave = chavePorId.remove(id);
+		if (chave != null) {
+			porChave.remove(chave);
+		}
+	}
+
+	public synchronized void limpa() {
+		porChave.clear();
+		chavePorId.clear();
+	}
+
+	public synchronized int getTamanho() {
+		return porChave.size();
+	}
+
+	public synchronized long getAcertos() {
+		return acertos;
+	}
+
+	public synchronized long getFaltas() {
+		return faltas;
+	}
+
+	public synchronized long getDespejos() {
+		return despejos;
+	}
+
+	public synchronized double getTaxaDeAcerto() {
+		long consultas = acertos + faltas;
+		return consultas == 0 ? 0.0 : (double) acertos / consultas;
+	}
+
+	protected long agora() {
+		return System.currentTimeMillis();
+	}
+
+	private void remove(String chave, Entrada entrada) {
+		porChave.remove(chave);
+		if (entrada.id != INEXISTENTE) {
+			chavePorId.remove(entrada.id);
+		}
+	}
+
+	private static String chave(String nome, String email) {
+		return nome + '\u0000' + email;
+	}
+
+	private static class Entrada {
+		private final int id;
+		private final long expiraEm;
+
+		Entrada(int id, long expiraEm) {
+			this.id = id;
+			this.expiraEm = expiraEm;
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.hibernate.service.jdbc.connections.internal.DriverManagerConnectionProviderImpl;
+
+/**
+ * O pool de conexes padro do Hibernate, mas entregando conexes marcadas
+ * como somente leitura. O banco recusa qualquer escrita feita por elas.
+ *
+ * Fica num pool separado para que a marcao nunca vaze para uma sesso
+ * comum; ainda assim, ela  desfeita quando a conexo volta ao pool.
+ */
+public class ConexoesSomenteLeitura extends DriverManagerConnectionProviderImpl {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		Connection conexao = super.getConnection();
+		conexao.setReadOnly(true);
+		return conexao;
+	}
+
+	@Override
+	public void closeConnection(Connection conexao) throws SQLException {
+		if (!conexao.isClosed()) {
+			conexao.setReadOnly(false);
+		}
+		super.closeConnection(conexao);
+	}
+}
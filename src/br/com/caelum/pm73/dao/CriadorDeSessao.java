@@ -1,12 +1,22 @@
 package br.com.caelum.pm73.dao;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.FlushMode;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.AnnotationConfiguration;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.service.ServiceRegistry;
 
 import br.com.caelum.pm73.dominio.Lance;
 import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Participacao;
 import br.com.caelum.pm73.dominio.Usuario;
 
 /**
@@ -26,25 +36,189 @@ public class CriadorDeSessao {
 
 	private static AnnotationConfiguration config;
 	private static SessionFactory sf;
+	private static SessionFactory sfSomenteLeitura;
+	private static ShardsDeLeilao shards;
+	private static FluxoDeAlteracoes fluxo;
+	private static final PerfilDeArmazenamento perfil = PerfilDeArmazenamento.doSistema();
 
 	public Session getSession() {
-		if (sf == null) {
-			sf = getConfig().buildSessionFactory();
+		return getSessionFactory().openSession();
+	}
+
+	private SessionFactory getSessionFactory() {
+		synchronized (CriadorDeSessao.class) {
+			if (sf == null) {
+				sf = getConfig().buildSessionFactory();
+				registraOuvinteDeAlteracoes(sf);
+				perfil.prepara(sf);
+				SequenciasDeIds.alinha(sf);
+			}
+			return sf;
+		}
+	}
+
+	/**
+	 * O perfil de armazenamento do banco, escolhido com
+	 * -Dcaelum.armazenamento (padro "memory").
+	 */
+	public PerfilDeArmazenamento getPerfil() {
+		return perfil;
+	}
+
+	/**
+	 * Uma sesso s para consultas: as entidades carregadas no guardam cpia
+	 * para o dirty checking, nada  enviado ao banco antes das consultas e as
+	 * conexes, de um pool prprio, so somente leitura.
+	 */
+	public Session getSessionSomenteLeitura() {
+		synchronized (CriadorDeSessao.class) {
+			if (sfSomenteLeitura == null) {
+				// o banco precisa estar criado e no tipo certo antes das conexes s de leitura
+				getSessionFactory();
+				sfSomenteLeitura = criaConfigSomenteLeitura(perfil.getUrl()).buildSessionFactory();
+			}
+		}
+
+		return somenteLeitura(sfSomenteLeitura.openSession());
+	}
+
+	/**
+	 * Coloca uma sesso qualquer no modo somente leitura do Hibernate: sem
+	 * snapshots das entidades e sem flush automtico.
+	 */
+	public static Session somenteLeitura(Session session) {
+		session.setDefaultReadOnly(true);
+		session.setFlushMode(FlushMode.MANUAL);
+		return session;
+	}
+
+	/**
+	 * O fluxo em que todas as sesses publicam suas alteraes depois do commit.
+	 * Para guardar os eventos num dirio em disco, inicie a JVM com
+	 * -Dcaelum.alteracoes.diario=caminho/do/arquivo.
+	 */
+	public FluxoDeAlteracoes getFluxoDeAlteracoes() {
+		return fluxo();
+	}
+
+	private static FluxoDeAlteracoes fluxo() {
+		synchronized (CriadorDeSessao.class) {
+			if (fluxo == null) {
+				String caminhoDoDiario = System.getProperty("caelum.alteracoes.diario");
+				DiarioDeAlteracoes diario = caminhoDoDiario == null ? null : new DiarioDeAlteracoes(new File(
+						caminhoDoDiario));
+				fluxo = new FluxoDeAlteracoes(1 << 16, diario);
+			}
+			return fluxo;
 		}
+	}
+
+	static void registraOuvinteDeAlteracoes(SessionFactory sessionFactory) {
+		OuvinteDeAlteracoes ouvinte = new OuvinteDeAlteracoes(fluxo());
+		EventListenerRegistry registro = ((SessionFactoryImplementor) sessionFactory).getServiceRegistry()
+				.getService(EventListenerRegistry.class);
+		registro.appendListeners(EventType.POST_INSERT, ouvinte);
+		registro.appendListeners(EventType.POST_UPDATE, ouvinte);
+		registro.appendListeners(EventType.POST_DELETE, ouvinte);
+	}
 
-		return sf.openSession();
+	/*
+	 * Todas as fbricas mantm a tabela de participaes, seja qual for o
+	 * caminho que grave o lance.
+	 */
+	private static void registraOuvinteDeLances(SessionFactory sessionFactory) {
+		EventListenerRegistry registro = ((SessionFactoryImplementor) sessionFactory).getServiceRegistry()
+				.getService(EventListenerRegistry.class);
+		registro.appendListeners(EventType.POST_INSERT, new OuvinteDeLances());
 	}
 
 	public Configuration getConfig() {
 		if (config == null) {
-			config = new AnnotationConfiguration().addAnnotatedClass(Lance.class).addAnnotatedClass(Leilao.class)
-					.addAnnotatedClass(Usuario.class)
-					.setProperty("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver")
-					.setProperty("hibernate.connection.url", "jdbc:hsqldb:caelum.db;shutdown=true")
-					.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect")
-					.setProperty("hibernate.connection.username", "sa").setProperty("hibernate.connection.password", "")
-					.setProperty("hibernate.show_sql", "true");
+			config = criaConfig(perfil.getUrl());
+			perfil.configura(config);
 		}
 		return config;
 	}
+
+	/**
+	 * Uma configurao nova, igual  padro mas apontando para outro banco.
+	 * Usada pelos shards e por ferramentas que no devem mexer no caelum.db.
+	 */
+	public AnnotationConfiguration criaConfig(String url) {
+		AnnotationConfiguration novaConfig = new AnnotationConfiguration() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public SessionFactory buildSessionFactory(ServiceRegistry registro) {
+				SessionFactory fabrica = super.buildSessionFactory(registro);
+				registraOuvinteDeLances(fabrica);
+				return fabrica;
+			}
+		};
+		novaConfig.addAnnotatedClass(Lance.class).addAnnotatedClass(Leilao.class)
+				.addAnnotatedClass(Usuario.class).addAnnotatedClass(Participacao.class)
+				.setProperty("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver")
+				.setProperty("hibernate.connection.url", url)
+				.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect")
+				.setProperty("hibernate.connection.username", "sa").setProperty("hibernate.connection.password", "")
+				.setProperty("hibernate.show_sql", "true")
+				// com os ids reservados em blocos, os INSERTs do flush podem ir em lote
+				.setProperty("hibernate.jdbc.batch_size", "50").setProperty("hibernate.order_inserts", "true");
+		return novaConfig;
+	}
+
+	/**
+	 * Como {@link #criaConfig}, mas com as conexes marcadas como somente
+	 * leitura.
+	 */
+	public AnnotationConfiguration criaConfigSomenteLeitura(String url) {
+		AnnotationConfiguration novaConfig = criaConfig(url);
+		novaConfig.setProperty("hibernate.connection.provider_class", ConexoesSomenteLeitura.class.getName());
+		return novaConfig;
+	}
+
+	/**
+	 * Os shards de leilo, criados na primeira chamada. A quantidade vem de
+	 * -Dcaelum.shards (padro 1); o shard i fica no arquivo caelum-shard-i.db.
+	 */
+	public ShardsDeLeilao getShards() {
+		synchronized (CriadorDeSessao.class) {
+			if (shards == null) {
+				int quantidade = Integer.parseInt(System.getProperty("caelum.shards", "1"));
+				List<String> urls = new ArrayList<String>();
+				for (int i = 0; i < quantidade; i++) {
+					urls.add("jdbc:hsqldb:caelum-shard-" + i + ".db;shutdown=true");
+				}
+				shards = new ShardsDeLeilao(this, urls);
+			}
+			return shards;
+		}
+	}
+
+	/**
+	 * Fecha os shards, as fbricas de sesses e o fluxo de alteraes, que
+	 * termina de escrever o dirio. Uma nova chamada a {@link #getSession()} ou
+	 * {@link #getShards()} cria tudo de novo.
+	 */
+	public void fecha() {
+		synchronized (CriadorDeSessao.class) {
+			if (shards != null) {
+				shards.fecha();
+				shards = null;
+			}
+			if (sfSomenteLeitura != null) {
+				sfSomenteLeitura.close();
+				sfSomenteLeitura = null;
+			}
+			if (sf != null) {
+				sf.close();
+				sf = null;
+			}
+			// depois das fbricas: nenhuma sesso publica mais nele
+			if (fluxo != null) {
+				fluxo.fecha();
+				fluxo = null;
+			}
+		}
+	}
 }
@@ -0,0 +1,78 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A posio de leitura de um consumidor no {@link FluxoDeAlteracoes}. No 
+ * thread-safe: cada consumidor tem o seu.
+ *
+ * Enquanto estiver aberto, o cursor segura no dirio os eventos que ainda no
+ * leu; quem desiste de ler deve chamar {@link #fecha()}.
+ */
+public class CursorDeAlteracoes {
+
+	private final FluxoDeAlteracoes fluxo;
+	// lida tambm por quem publica, para saber at onde o dirio pode descartar
+	private volatile long proxima;
+
+	CursorDeAlteracoes(FluxoDeAlteracoes fluxo, long proxima) {
+		this.fluxo = fluxo;
+		this.proxima = proxima;
+	}
+
+	/**
+	 * At "maximo" eventos, em ordem, a partir da posio do cursor. Devolve uma
+	 * lista vazia se no houver nada novo.
+	 *
+	 * @throws IllegalStateException
+	 *             se o cursor ficou mais de uma volta atrs no buffer e o
+	 *             fluxo no tem dirio para recuperar os eventos perdidos
+	 */
+	public List<EventoDeAlteracao> proximos(int maximo) {
+		if (proxima < fluxo.getPrimeiraDoBuffer()) {
+			return doDiario(maximo);
+		}
+
+		List<EventoDeAlteracao> lidos = new ArrayList<EventoDeAlteracao>();
+		while (lidos.size() < maximo) {
+			EventoDeAlteracao evento = fluxo.naPosicao(proxima);
+			if (evento == null || evento.getSequencia() < proxima) {
+				// ainda no publicado
+				break;
+			}
+			if (evento.getSequencia() > proxima) {
+				if (lidos.isEmpty()) {
+					return doDiario(maximo);
+				}
+				break;
+			}
+			lidos.add(evento);
+			proxima++;
+		}
+		return lidos;
+	}
+
+	private List<EventoDeAlteracao> doDiario(int maximo) {
+		DiarioDeAlteracoes diario = fluxo.getDiario();
+		if (diario == null) {
+			throw new IllegalStateException("O cursor ficou para trs: o evento " + proxima
+					+ " j saiu do buffer e o fluxo no tem dirio");
+		}
+		List<EventoDeAlteracao> lidos = diario.leDesde(proxima, maximo);
+		proxima += lidos.size();
+		return lidos;
+	}
+
+	/**
+	 * A prxima sequncia a ser lida. Guardando esse valor o consumidor pode
+	 * retomar a leitura com {@link FluxoDeAlteracoes#cursorDesde(long)}.
+	 */
+	public long getProxima() {
+		return proxima;
+	}
+
+	public void fecha() {
+		fluxo.esquece(this);
+	}
+}
@@ -0,0 +1,452 @@
+package br.com.caelum.pm73.dao;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cpia local, s de acrscimo, dos eventos publicados no
+ * {@link FluxoDeAlteracoes}, uma linha "sequencia;tipo;entidade;id;instante;F"
+ * por evento. Com ele um consumidor que reiniciou, ou que ficou mais de uma
+ * volta atrs no buffer, consegue reler os eventos a partir da ltima
+ * sequncia que processou.
+ *
+ * Quem publica s coloca o evento numa fila sem travas; uma thread prpria
+ * escreve os eventos no arquivo, em lotes e na ordem das sequncias, alguns
+ * milissegundos depois. {@link #fecha()} espera a escrita do que j foi
+ * publicado.
+ *
+ * A cada {@link #INTERVALO_DO_INDICE} eventos guardamos em memria a posio
+ * da linha no arquivo. Assim {@link #leDesde} comea a ler perto da sequncia
+ * pedida, em vez de percorrer o arquivo inteiro a cada lote.
+ *
+ * {@link #descartaAte} pede  escritora que corte do comeo do arquivo os
+ * eventos que nenhum consumidor vai mais ler. O ltimo evento sempre fica: 
+ * dele que a numerao continua quando o dirio  reaberto.
+ */
+public class DiarioDeAlteracoes {
+
+	private static final String CODIFICACAO = "UTF-8";
+	private static final String FIM = ";F";
+	private static final int INTERVALO_DO_INDICE = 256;
+	private static final long ESPERA_DA_ESCRITORA_EM_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long ESPERA_DE_QUEM_LE_EM_MILLIS = 1000;
+
+	private final File arquivo;
+	private final ConcurrentLinkedQueue<EventoDeAlteracao> recebidos = new ConcurrentLinkedQueue<EventoDeAlteracao>();
+	private final AtomicLong ultimaRecebida = new AtomicLong();
+	private final AtomicLong descartarAte = new AtomicLong();
+	private final Thread escritora;
+	private volatile boolean aberto = true;
+
+	// s a escritora mexe nestes
+	private final TreeMap<Long, EventoDeAlteracao> foraDeOrdem = new TreeMap<Long, EventoDeAlteracao>();
+	private FileOutputStream saida;
+
+	// protegidos pelo monitor do dirio
+	private final TreeMap<Long, Long> posicoes = new TreeMap<Long, Long>();
+	private long ultimaGravada;
+	private long primeiraGuardada;
+	private long tamanho;
+	private IOException erro;
+
+	public DiarioDeAlteracoes(File arquivo) {
+		this.arquivo = arquivo;
+		indexa();
+		ultimaRecebida.set(ultimaGravada);
+		descartarAte.set(primeiraGuardada - 1);
+
+		escritora = new Thread(new Runnable() {
+			public void run() {
+				escreveOsRecebidos();
+			}
+		}, "diario-de-alteracoes");
+		escritora.setDaemon(true);
+		escritora.start();
+	}
+
+	public void registra(EventoDeAlteracao evento) {
+		verificaAberto();
+		recebidos.offer(evento);
+		long ultima;
+		do {
+			ultima = ultimaRecebida.get();
+		} while (evento.getSequencia() > ultima && !ultimaRecebida.compareAndSet(ultima, evento.getSequencia()));
+		LockSupport.unpark(escritora);
+	}
+
+	void verificaAberto() {
+		if (!aberto) {
+			throw new IllegalStateException("O dirio " + arquivo + " j foi fechado");
+		}
+	}
+
+	/**
+	 * Os eventos at essa sequncia podem ser descartados do arquivo. O corte 
+	 * feito pela escritora, entre dois lotes.
+	 */
+	public void descartaAte(long sequencia) {
+		long atual;
+		do {
+			atual = descartarAte.get();
+		} while (sequencia > atual && !descartarAte.compareAndSet(atual, sequencia));
+		LockSupport.unpark(escritora);
+	}
+
+	/**
+	 * At "maximo" eventos a partir da sequncia dada, em ordem e sem buracos.
+	 * Espera a escrita dos eventos j publicados.
+	 *
+	 * @throws IllegalStateException
+	 *             se os eventos a partir dessa sequncia j foram descartados
+	 */
+	public List<EventoDeAlteracao> leDesde(long sequencia, int maximo) {
+		TreeMap<Long, EventoDeAlteracao> eventos = new TreeMap<Long, EventoDeAlteracao>();
+		long ultimaQueInteressa = sequencia + maximo + INTERVALO_DO_INDICE;
+		Linhas linhas = null;
+		try {
+			synchronized (this) {
+				aguardaEscritaAte(ultimaRecebida.get());
+				if (sequencia < primeiraGuardada) {
+					throw new IllegalStateException("O evento " + sequencia + " j foi descartado do dirio " + arquivo);
+				}
+				// um intervalo a mais tolera eventos fora de ordem em dirios antigos
+				Map.Entry<Long, Long> anterior = posicoes.floorEntry(sequencia - INTERVALO_DO_INDICE);
+				// aberto aqui dentro: um corte do arquivo depois disso no muda o que lemos
+				linhas = new Linhas(arquivo, anterior == null ? 0 : anterior.getValue(), tamanho);
+			}
+			String linha;
+			while ((linha = linhas.proxima()) != null) {
+				EventoDeAlteracao evento = interpreta(linha);
+				if (evento == null || evento.getSequencia() < sequencia) {
+					continue;
+				}
+				if (evento.getSequencia() > ultimaQueInteressa) {
+					break;
+				}
+				eventos.put(evento.getSequencia(), evento);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("No foi possvel ler o dirio " + arquivo, e);
+		} finally {
+			if (linhas != null) {
+				linhas.fecha();
+			}
+		}
+
+		List<EventoDeAlteracao> seguidos = new ArrayList<EventoDeAlteracao>();
+		long esperada = sequencia;
+		for (EventoDeAlteracao evento : eventos.values()) {
+			if (evento.getSequencia() != esperada || seguidos.size() == maximo) {
+				break;
+			}
+			seguidos.add(evento);
+			esperada++;
+		}
+		return seguidos;
+	}
+
+	public long ultimaSequencia() {
+		return ultimaRecebida.get();
+	}
+
+	/**
+	 * Para de aceitar eventos e espera a escrita dos que j foram publicados.
+	 */
+	public void fecha() {
+		aberto = false;
+		LockSupport.unpark(escritora);
+		try {
+			escritora.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void aguardaEscritaAte(long sequencia) {
+		long limite = System.currentTimeMillis() + ESPERA_DE_QUEM_LE_EM_MILLIS;
+		try {
+			while (ultimaGravada < sequencia && erro == null && escritora.isAlive()) {
+				long restante = limite - System.currentTimeMillis();
+				if (restante <= 0) {
+					break;
+				}
+				wait(restante);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (erro != null) {
+			throw new IllegalStateException("No foi possvel escrever no dirio " + arquivo, erro);
+		}
+	}
+
+	private void escreveOsRecebidos() {
+		try {
+			while (true) {
+				// lido antes de esvaziar a fila: quem publicou antes de fecha() j est nela
+				boolean fechando = !aberto;
+				EventoDeAlteracao evento;
+				while ((evento = recebidos.poll()) != null) {
+					foraDeOrdem.put(evento.getSequencia(), evento);
+				}
+				escreveOsSeguidos();
+				descartaOsLidos();
+				if (fechando) {
+					break;
+				}
+				LockSupport.parkNanos(this, ESPERA_DA_ESCRITORA_EM_NANOS);
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				erro = e;
+			}
+		} finally {
+			if (saida != null) {
+				try {
+					saida.close();
+				} catch (IOException e) {
+				}
+			}
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Escreve de uma vez os eventos que seguem o ltimo gravado; um buraco na
+	 * sequncia espera o publicador que ainda no chegou  fila.
+	 */
+	private void escreveOsSeguidos() throws IOException {
+		long proxima = ultimaGravada + 1;
+		if (foraDeOrdem.isEmpty() || foraDeOrdem.firstKey() != proxima) {
+			return;
+		}
+
+		ByteArrayOutputStream lote = new ByteArrayOutputStream();
+		Map<Long, Long> novasPosicoes = new TreeMap<Long, Long>();
+		while (!foraDeOrdem.isEmpty() && foraDeOrdem.firstKey() == proxima) {
+			EventoDeAlteracao evento = foraDeOrdem.pollFirstEntry().getValue();
+			if (proxima % INTERVALO_DO_INDICE == 0) {
+				novasPosicoes.put(proxima, tamanho + lote.size());
+			}
+			lote.write(linha(evento).getBytes(CODIFICACAO));
+			proxima++;
+		}
+
+		if (saida == null) {
+			saida = new FileOutputStream(arquivo, true);
+		}
+		lote.writeTo(saida);
+		saida.flush();
+
+		synchronized (this) {
+			ultimaGravada = proxima - 1;
+			tamanho += lote.size();
+			posicoes.putAll(novasPosicoes);
+			notifyAll();
+		}
+	}
+
+	/*
+	 * Copia para um arquivo novo tudo depois do ltimo evento a descartar e o
+	 * coloca no lugar do antigo. S a escritora mexe no arquivo, ento a cpia
+	 * pode ser feita sem o monitor; a troca e o ndice mudam juntos, sob ele.
+	 */
+	private void descartaOsLidos() throws IOException {
+		long ate;
+		long fim;
+		synchronized (this) {
+			ate = Math.min(descartarAte.get(), ultimaGravada - 1);
+			if (ate < primeiraGuardada) {
+				return;
+			}
+			fim = tamanho;
+		}
+
+		long corte = fim;
+		Map.Entry<Long, Long> anterior = posicoes.floorEntry(ate - INTERVALO_DO_INDICE);
+		Linhas linhas = new Linhas(arquivo, anterior == null ? 0 : anterior.getValue(), fim);
+		try {
+			long inicioDaLinha = linhas.getPosicao();
+			String linha;
+			while ((linha = linhas.proxima()) != null) {
+				EventoDeAlteracao evento = interpreta(linha);
+				if (evento != null && evento.getSequencia() > ate) {
+					corte = inicioDaLinha;
+					break;
+				}
+				inicioDaLinha = linhas.getPosicao();
+			}
+		} finally {
+			linhas.fecha();
+		}
+
+		if (saida != null) {
+			saida.close();
+			saida = null;
+		}
+		File novo = new File(arquivo.getPath() + ".novo");
+		FileInputStream entrada = new FileInputStream(arquivo);
+		try {
+			FileOutputStream copia = new FileOutputStream(novo, false);
+			try {
+				entrada.getChannel().transferTo(corte, fim - corte, copia.getChannel());
+			} finally {
+				copia.close();
+			}
+		} finally {
+			entrada.close();
+		}
+
+		synchronized (this) {
+			Files.move(novo.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			TreeMap<Long, Long> restantes = new TreeMap<Long, Long>();
+			for (Map.Entry<Long, Long> posicao : posicoes.entrySet()) {
+				if (posicao.getValue() >= corte) {
+					restantes.put(posicao.getKey(), posicao.getValue() - corte);
+				}
+			}
+			posicoes.clear();
+			posicoes.putAll(restantes);
+			tamanho -= corte;
+			primeiraGuardada = ate + 1;
+		}
+	}
+
+	/*
+	 * L o arquivo uma vez ao abrir: a primeira e a ltima sequncia, o ndice
+	 * de posies e onde termina a ltima linha completa. Uma linha cortada por uma queda 
+	 * descartada, para a prxima escrita no ser colada nela.
+	 */
+	private void indexa() {
+		primeiraGuardada = 1;
+		if (!arquivo.exists()) {
+			return;
+		}
+
+		Linhas linhas = null;
+		try {
+			linhas = new Linhas(arquivo, 0, arquivo.length());
+			long inicioDaLinha = 0;
+			String linha;
+			while ((linha = linhas.proxima()) != null) {
+				EventoDeAlteracao evento = interpreta(linha);
+				if (evento != null) {
+					primeiraGuardada = ultimaGravada == 0 ? evento.getSequencia() : Math.min(primeiraGuardada,
+							evento.getSequencia());
+					ultimaGravada = Math.max(ultimaGravada, evento.getSequencia());
+					if (evento.getSequencia() % INTERVALO_DO_INDICE == 0 && !posicoes.containsKey(evento.getSequencia())) {
+						posicoes.put(evento.getSequencia(), inicioDaLinha);
+					}
+				}
+				inicioDaLinha = linhas.getPosicao();
+			}
+			tamanho = inicioDaLinha;
+		} catch (IOException e) {
+			throw new IllegalStateException("No foi possvel ler o dirio " + arquivo, e);
+		} finally {
+			if (linhas != null) {
+				linhas.fecha();
+			}
+		}
+
+		if (arquivo.length() > tamanho) {
+			try {
+				RandomAccessFile acesso = new RandomAccessFile(arquivo, "rw");
+				try {
+					acesso.setLength(tamanho);
+				} finally {
+					acesso.close();
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("No foi possvel corrigir o dirio " + arquivo, e);
+			}
+		}
+	}
+
+	private static String linha(EventoDeAlteracao evento) {
+		return evento.getSequencia() + ";" + evento.getTipo() + ";" + evento.getEntidade() + ";"
+				+ (evento.getId() == null ? "" : evento.getId()) + ";" + evento.getInstante() + FIM + "\n";
+	}
+
+	private static EventoDeAlteracao interpreta(String linha) {
+		String[] campos = linha.split(";", -1);
+		if (!linha.endsWith(FIM) || campos.length != 6) {
+			return null;
+		}
+		try {
+			return new EventoDeAlteracao(Long.parseLong(campos[0]), TipoDeAlteracao.valueOf(campos[1]), campos[2],
+					campos[3].length() == 0 ? null : Integer.valueOf(campos[3]), Long.parseLong(campos[4]));
+		} catch (IllegalArgumentException e) {
+			// linha corrompida; ignoramos
+			return null;
+		}
+	}
+
+	/*
+	 * As linhas completas entre duas posies do arquivo, sabendo onde cada uma
+	 * termina.
+	 */
+	private static class Linhas {
+		private final FileInputStream arquivo;
+		private final BufferedInputStream entrada;
+		private final long fim;
+		private final ByteArrayOutputStream linha = new ByteArrayOutputStream();
+		private long posicao;
+
+		Linhas(File arquivo, long inicio, long fim) throws IOException {
+			this.arquivo = new FileInputStream(arquivo);
+			this.arquivo.getChannel().position(inicio);
+			this.entrada = new BufferedInputStream(this.arquivo);
+			this.posicao = inicio;
+			this.fim = fim;
+		}
+
+		/*
+		 * A prxima linha terminada em '\n', ou null no fim.
+		 */
+		String proxima() throws IOException {
+			linha.reset();
+			while (posicao < fim) {
+				int lido = entrada.read();
+				if (lido == -1) {
+					break;
+				}
+				posicao++;
+				if (lido == '\n') {
+					return linha.toString(CODIFICACAO);
+				}
+				linha.write(lido);
+			}
+			return null;
+		}
+
+		long getPosicao() {
+			return posicao;
+		}
+
+		void fecha() {
+			try {
+				arquivo.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
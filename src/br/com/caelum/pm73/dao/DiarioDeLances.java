@@ -0,0 +1,272 @@
+package br.com.caelum.pm73.dao;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dirio local, s de acrscimo, dos lances aceitos pelo
+ * {@link GravadorDeLances}.
+ *
+ * Cada lance aceito vira uma linha "L;sequencia;leilao;usuario;valor;data;chave;F"
+ * e cada grupo gravado no banco vira uma linha "C;sequencia;F", confirmando
+ * todos os lances at aquela sequncia. Depois de uma queda, os lances sem
+ * confirmao so devolvidos por {@link #pendentes()} para serem gravados de
+ * novo. As linhas vo para o sistema operacional a cada escrita, ento
+ * sobrevivem  queda do processo; quedas da mquina dependem de
+ * {@link #sincroniza()} ou {@link #sincronizaAte(long)}.
+ *
+ * Uma queda no meio de uma escrita deixa a ltima linha pela metade. Antes de
+ * escrever de novo no arquivo, cortamos essa linha; sem isso a prxima linha
+ * seria colada nela e as duas se perderiam.
+ *
+ * Sob carga constante o buffer do gravador nunca esvazia e o dirio nunca 
+ * limpo; por isso, a cada "linhasParaCompactar" linhas escritas, a confirmao
+ * reescreve o arquivo s com os lances ainda pendentes. O tamanho do arquivo,
+ * e o tempo de recuperao, ficam limitados.
+ */
+public class DiarioDeLances {
+
+	private static final String CODIFICACAO = "UTF-8";
+	private static final String FIM = ";F";
+	private static final int LINHAS_PARA_COMPACTAR = 10000;
+
+	private final File arquivo;
+	private final int linhasParaCompactar;
+	private FileOutputStream saida;
+	private Writer escritor;
+	private long ultimaRegistrada;
+	private long sincronizadaAte;
+	private int linhasDesdeACompactacao;
+
+	public DiarioDeLances(File arquivo) {
+		this(arquivo, LINHAS_PARA_COMPACTAR);
+	}
+
+	public DiarioDeLances(File arquivo, int linhasParaCompactar) {
+		if (linhasParaCompactar <= 0) {
+			throw new IllegalArgumentException("Configurao invlida para o dirio de lances");
+		}
+		this.arquivo = arquivo;
+		this.linhasParaCompactar = linhasParaCompactar;
+	}
+
+	public synchronized void registra(LancePendente lance) {
+		escreve(linhaDe(lance));
+		ultimaRegistrada = Math.max(ultimaRegistrada, lance.getSequencia());
+	}
+
+	public synchronized void confirma(long ateSequencia) {
+		escreve("C;" + ateSequencia + FIM);
+		if (linhasDesdeACompactacao >= linhasParaCompactar) {
+			compacta();
+		}
+	}
+
+	public synchronized void sincroniza() {
+		try {
+			abre();
+			escritor.flush();
+			saida.getFD().sync();
+			sincronizadaAte = ultimaRegistrada;
+		} catch (IOException e) {
+			throw new IllegalStateException("No foi possvel sincronizar o dirio " + arquivo, e);
+		}
+	}
+
+	/**
+	 * Garante que o lance com essa sequncia, e todos os anteriores, esto no
+	 * disco. Quem chega enquanto outro sincroniza espera por ele e, na maioria
+	 * das vezes, j sai coberto pelo mesmo fsync.
+	 */
+	public synchronized void sincronizaAte(long sequencia) {
+		if (sequencia > sincronizadaAte) {
+			sincroniza();
+		}
+	}
+
+	/**
+	 * Descarta todo o contedo do dirio. S deve ser chamado quando no h
+	 * nenhum lance pendente.
+	 */
+	public synchronized void limpa() {
+		fecha();
+		try {
+			new FileOutputStream(arquivo, false).close();
+		} catch (IOException e) {
+			throw new IllegalStateException("No foi possvel limpar o dirio " + arquivo, e);
+		}
+		linhasDesdeACompactacao = 0;
+	}
+
+	/*
+	 * O arquivo novo vai inteiro para o disco antes de substituir o antigo:
+	 * numa queda fica um ou outro, e os dois tm todos os lances pendentes, j
+	 * sincronizados ou no.
+	 */
+	private void compacta() {
+		List<LancePendente> naoConfirmados = pendentes();
+		fecha();
+		File novo = new File(arquivo.getPath() + ".novo");
+		try {
+			FileOutputStream saidaNova = new FileOutputStream(novo, false);
+			try {
+				Writer escritorNovo = new OutputStreamWriter(saidaNova, CODIFICACAO);
+				for (LancePendente lance : naoConfirmados) {
+					escritorNovo.write(linhaDe(lance));
+					escritorNovo.write('\n');
+				}
+				escritorNovo.flush();
+				saidaNova.getFD().sync();
+			} finally {
+				saidaNova.close();
+			}
+			Files.move(novo.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new IllegalStateException("No foi possvel compactar o dirio " + arquivo, e);
+		}
+		linhasDesdeACompactacao = naoConfirmados.size();
+	}
+
+	/**
+	 * L o dirio e devolve, em ordem, os lances que nunca foram confirmados.
+	 * Linhas sem o ";F" final (queda no meio de uma escrita) so ignoradas.
+	 * Lances gravados antes da chave existir voltam sem ela.
+	 */
+	public synchronized List<LancePendente> pendentes() {
+		List<LancePendente> lances = new ArrayList<LancePendente>();
+		if (!arquivo.exists()) {
+			return lances;
+		}
+
+		long confirmadoAte = 0;
+		BufferedReader leitor = null;
+		try {
+			leitor = new BufferedReader(new InputStreamReader(new FileInputStream(arquivo), CODIFICACAO));
+			String linha;
+			while ((linha = leitor.readLine()) != null) {
+				String[] campos = linha.split(";");
+				try {
+					if (!linha.endsWith(FIM)) {
+						continue;
+					}
+					if (campos[0].equals("L") && (campos.length == 7 || campos.length == 8)) {
+						lances.add(new LancePendente(Long.parseLong(campos[1]), Integer.parseInt(campos[2]),
+								Integer.parseInt(campos[3]), Double.parseDouble(campos[4]), Long.parseLong(campos[5]),
+								campos.length == 8 ? campos[6] : null).recuperado());
+					} else if (campos[0].equals("C") && campos.length == 3) {
+						confirmadoAte = Math.max(confirmadoAte, Long.parseLong(campos[1]));
+					}
+				} catch (NumberFormatException e) {
+					// linha corrompida; ignoramos
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("No foi possvel ler o dirio " + arquivo, e);
+		} finally {
+			if (leitor != null) {
+				try {
+					leitor.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		List<LancePendente> naoConfirmados = new ArrayList<LancePendente>();
+		for (LancePendente lance : lances) {
+			if (lance.getSequencia() > confirmadoAte) {
+				naoConfirmados.add(lance);
+			}
+		}
+		return naoConfirmados;
+	}
+
+	public synchronized void fecha() {
+		if (escritor != null) {
+			try {
+				escritor.close();
+			} catch (IOException e) {
+			}
+			escritor = null;
+			saida = null;
+		}
+	}
+
+	private void escreve(String linha) {
+		try {
+			abre();
+			escritor.write(linha);
+			escritor.write('\n');
+			escritor.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException("No foi possvel escrever no dirio " + arquivo, e);
+		}
+		linhasDesdeACompactacao++;
+	}
+
+	/*
+	 * Lances recuperados de dirios antigos, sem chave, continuam sem ela.
+	 */
+	private String linhaDe(LancePendente lance) {
+		return "L;" + lance.getSequencia() + ";" + lance.getLeilaoId() + ";" + lance.getUsuarioId() + ";"
+				+ lance.getValor() + ";" + lance.getDataEmMillis() + (lance.getChave() != null ? ";" + lance.getChave() : "")
+				+ FIM;
+	}
+
+	private void abre() throws IOException {
+		if (escritor == null) {
+			descartaLinhaIncompleta();
+			saida = new FileOutputStream(arquivo, true);
+			escritor = new OutputStreamWriter(saida, CODIFICACAO);
+		}
+	}
+
+	/*
+	 * Se o arquivo no termina em '\n', a ltima escrita foi interrompida. Uma
+	 * linha que j tem o ";F" s perdeu a quebra, que completamos; qualquer
+	 * outra  cortada fora.
+	 */
+	private void descartaLinhaIncompleta() throws IOException {
+		if (arquivo.length() == 0) {
+			return;
+		}
+		RandomAccessFile acesso = new RandomAccessFile(arquivo, "rw");
+		try {
+			long tamanho = acesso.length();
+			long inicioDaLinha = tamanho;
+			while (inicioDaLinha > 0) {
+				acesso.seek(inicioDaLinha - 1);
+				if (acesso.read() == '\n') {
+					break;
+				}
+				inicioDaLinha--;
+			}
+			if (inicioDaLinha == tamanho) {
+				return;
+			}
+
+			byte[] ultima = new byte[(int) (tamanho - inicioDaLinha)];
+			acesso.seek(inicioDaLinha);
+			acesso.readFully(ultima);
+			if (new String(ultima, CODIFICACAO).endsWith(FIM)) {
+				acesso.seek(tamanho);
+				acesso.write('\n');
+			} else {
+				acesso.setLength(inicioDaLinha);
+			}
+		} finally {
+			acesso.close();
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package br.com.caelum.pm73.dao;
+
+/**
+ * Quando o {@link GravadorDeLances} considera um lance aceito.
+ */
+public enum Durabilidade {
+
+	/**
+	 * O lance s  aceito depois que a transao do grupo em que ele foi gravado
+	 *  commitada no banco.
+	 */
+	SINCRONA,
+
+	/**
+	 * O lance  aceito assim que sua linha no dirio local chega ao disco
+	 * (quem registra ao mesmo tempo divide o mesmo fsync); ele vai para o banco
+	 * junto com os demais lances do grupo, alguns milissegundos depois. Se no
+	 * chegar, o erro fica no {@link LancePendente} devolvido ao registrar.
+	 */
+	GRUPO
+}
@@ -0,0 +1,53 @@
+package br.com.caelum.pm73.dao;
+
+/**
+ * Uma alterao j commitada em uma entidade, na ordem em que foi publicada no
+ * {@link FluxoDeAlteracoes}.
+ */
+public class EventoDeAlteracao {
+
+	private final long sequencia;
+	private final TipoDeAlteracao tipo;
+	private final String entidade;
+	private final Integer id;
+	private final long instante;
+
+	public EventoDeAlteracao(long sequencia, TipoDeAlteracao tipo, String entidade, Integer id, long instante) {
+		this.sequencia = sequencia;
+		this.tipo = tipo;
+		this.entidade = entidade;
+		this.id = id;
+		this.instante = instante;
+	}
+
+	public long getSequencia() {
+		return sequencia;
+	}
+
+	public TipoDeAlteracao getTipo() {
+		return tipo;
+	}
+
+	/**
+	 * O nome simples da entidade: "Leilao", "Lance" ou "Usuario".
+	 */
+	public String getEntidade() {
+		return entidade;
+	}
+
+	/**
+	 * O id da entidade alterada, ou null em alteraes em lote.
+	 */
+	public Integer getId() {
+		return id;
+	}
+
+	public long getInstante() {
+		return instante;
+	}
+
+	@Override
+	public String toString() {
+		return sequencia + " " + tipo + " " + entidade + (id == null ? "" : "#" + id);
+	}
+}
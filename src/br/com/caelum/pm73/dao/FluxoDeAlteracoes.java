@@ -0,0 +1,162 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fluxo ordenado das alteraes commitadas pelos DAOs, para caches e ndices
+ * que hoje descobrem mudanas consultando {@link LeilaoDao#novos()} ou
+ * {@link LeilaoDao#total()} de tempos em tempos.
+ *
+ * Os eventos ficam num buffer circular de tamanho fixo (potncia de 2). Quem
+ * publica reserva uma sequncia com um incremento atmico e grava o evento na
+ * posio correspondente, sem travas. Cada consumidor l com o seu prprio
+ * {@link CursorDeAlteracoes}, em lotes, no seu ritmo.
+ *
+ * Um consumidor que fique mais de uma volta atrs perde eventos do buffer; com
+ * um {@link DiarioDeAlteracoes} configurado, o cursor rel esses eventos do
+ * dirio, o que tambm permite retomar a leitura depois de reiniciar.
+ *
+ * A cada volta do buffer o dirio descarta o que todos os cursores abertos j
+ * leram. Sem nenhum cursor aberto nada  descartado: um consumidor que
+ * reiniciou ainda pode voltar a partir da sequncia que guardou.
+ */
+public class FluxoDeAlteracoes {
+
+	private final int mascara;
+	private final AtomicReferenceArray<EventoDeAlteracao> eventos;
+	private final AtomicLong ultimaSequencia;
+	private final long primeiraDoBuffer;
+	private final DiarioDeAlteracoes diario;
+	private final Set<CursorDeAlteracoes> cursores = Collections.synchronizedSet(Collections
+			.newSetFromMap(new WeakHashMap<CursorDeAlteracoes, Boolean>()));
+
+	public FluxoDeAlteracoes(int capacidade) {
+		this(capacidade, null);
+	}
+
+	public FluxoDeAlteracoes(int capacidade, DiarioDeAlteracoes diario) {
+		if (capacidade <= 0 || Integer.bitCount(capacidade) != 1) {
+			throw new IllegalArgumentException("A capacidade do fluxo deve ser uma potncia de 2");
+		}
+		this.mascara = capacidade - 1;
+		this.eventos = new AtomicReferenceArray<EventoDeAlteracao>(capacidade);
+		this.diario = diario;
+		this.ultimaSequencia = new AtomicLong(diario == null ? 0 : diario.ultimaSequencia());
+		// eventos de antes de reiniciar s existem no dirio
+		this.primeiraDoBuffer = ultimaSequencia.get() + 1;
+	}
+
+	/*
+	 * Uma sequncia reservada e nunca publicada seria um buraco permanente:
+	 * cursores e dirio esperam os eventos em ordem. Por isso s reservamos com
+	 * o dirio aberto e, se ele fechar logo depois, o evento ainda vai para o
+	 * buffer antes do erro subir.
+	 */
+	public EventoDeAlteracao publica(TipoDeAlteracao tipo, String entidade, Integer id) {
+		if (diario != null) {
+			diario.verificaAberto();
+		}
+		EventoDeAlteracao evento = new EventoDeAlteracao(ultimaSequencia.incrementAndGet(), tipo, entidade, id,
+				System.currentTimeMillis());
+
+		RuntimeException erroDoDiario = null;
+		if (diario != null) {
+			try {
+				diario.registra(evento);
+			} catch (RuntimeException e) {
+				erroDoDiario = e;
+			}
+		}
+
+		int posicao = (int) (evento.getSequencia() & mascara);
+		while (true) {
+			EventoDeAlteracao atual = eventos.get(posicao);
+			// se algum j deu a volta e gravou um evento mais novo aqui, o nosso s existe no dirio
+			if (atual != null && atual.getSequencia() > evento.getSequencia()) {
+				break;
+			}
+			if (eventos.compareAndSet(posicao, atual, evento)) {
+				break;
+			}
+		}
+
+		if (erroDoDiario != null) {
+			throw erroDoDiario;
+		}
+		if (diario != null && posicao == mascara) {
+			descartaOsLidos();
+		}
+		return evento;
+	}
+
+	private void descartaOsLidos() {
+		long menorProxima = Long.MAX_VALUE;
+		synchronized (cursores) {
+			if (cursores.isEmpty()) {
+				return;
+			}
+			for (CursorDeAlteracoes cursor : cursores) {
+				menorProxima = Math.min(menorProxima, cursor.getProxima());
+			}
+		}
+		diario.descartaAte(menorProxima - 1);
+	}
+
+	/**
+	 * Um cursor que comea a ler a partir do prximo evento publicado.
+	 */
+	public CursorDeAlteracoes novoCursor() {
+		return registra(new CursorDeAlteracoes(this, ultimaSequencia.get() + 1));
+	}
+
+	/**
+	 * Um cursor que comea na sequncia dada, normalmente a seguinte  ltima
+	 * que o consumidor processou antes de reiniciar.
+	 */
+	public CursorDeAlteracoes cursorDesde(long sequencia) {
+		return registra(new CursorDeAlteracoes(this, sequencia));
+	}
+
+	private CursorDeAlteracoes registra(CursorDeAlteracoes cursor) {
+		cursores.add(cursor);
+		return cursor;
+	}
+
+	void esquece(CursorDeAlteracoes cursor) {
+		cursores.remove(cursor);
+	}
+
+	/**
+	 * Fecha o dirio, esperando a escrita do que j foi publicado. Depois
+	 * disso o fluxo no aceita mais eventos.
+	 */
+	public void fecha() {
+		if (diario != null) {
+			diario.fecha();
+		}
+	}
+
+	public long getUltimaSequencia() {
+		return ultimaSequencia.get();
+	}
+
+	public int getCapacidade() {
+		return mascara + 1;
+	}
+
+	long getPrimeiraDoBuffer() {
+		return primeiraDoBuffer;
+	}
+
+	EventoDeAlteracao naPosicao(long sequencia) {
+		return eventos.get((int) (sequencia & mascara));
+	}
+
+	DiarioDeAlteracoes getDiario() {
+		return diario;
+	}
+}
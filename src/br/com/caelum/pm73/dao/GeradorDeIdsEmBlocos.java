@@ -0,0 +1,46 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Properties;
+
+import org.hibernate.MappingException;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.enhanced.OptimizerFactory;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.type.Type;
+
+/**
+ * Gera ids reservando blocos de uma sequncia do banco: cada NEXT VALUE da
+ * sequncia  o primeiro id de um bloco de "increment_size" ids, que a JVM
+ * distribui sozinha (otimizador pooled-lo). S uma ida ao banco a cada bloco,
+ * e o id j  conhecido no save, ento os INSERTs podem ir em lote no flush.
+ *
+ * Como cada bloco sai de uma sequncia, JVMs diferentes nunca recebem o mesmo
+ * id; dentro da JVM o otimizador  sincronizado. Para isso o incremento da
+ * sequncia tem de ser mltiplo do bloco de todas elas: uma JVM com um bloco
+ * que no divide o incremento do banco no sobe (ver {@link SequenciasDeIds}).
+ *
+ * O tamanho do bloco vem da anotao da entidade e pode ser trocado na
+ * inicializao com -Dcaelum.ids.&lt;Entidade&gt;=&lt;tamanho&gt;, por exemplo
+ * -Dcaelum.ids.Lance=500.
+ */
+public class GeradorDeIdsEmBlocos extends SequenceStyleGenerator {
+
+	@Override
+	public void configure(Type tipo, Properties parametros, Dialect dialeto) throws MappingException {
+		String entidade = parametros.getProperty(IdentifierGenerator.ENTITY_NAME);
+		String tamanho = System.getProperty("caelum.ids." + entidade.substring(entidade.lastIndexOf('.') + 1));
+		if (tamanho != null) {
+			parametros.setProperty(INCREMENT_PARAM, tamanho);
+		}
+		if (!parametros.containsKey(OPT_PARAM)) {
+			parametros.setProperty(OPT_PARAM, OptimizerFactory.StandardOptimizerDescriptor.POOLED_LO.getExternalName());
+		}
+
+		super.configure(tipo, parametros, dialeto);
+	}
+
+	public int getTamanhoDoBloco() {
+		return getOptimizer().getIncrementSize();
+	}
+}
@@ -0,0 +1,343 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Caminho opcional de gravao de lances em segundo plano ("write-behind").
+ *
+ * Os lances aceitos vo para o {@link DiarioDeLances} e para um buffer
+ * circular limitado; uma nica thread esvazia o buffer gravando grupos de at
+ * "tamanhoDoGrupo" lances por transao, ou o que tiver chegado em
+ * "esperaMaxima", o que acontecer primeiro. Assim pagamos um commit (e uma
+ * escrita no log do HSQLDB) por grupo, e no por lance.
+ *
+ * Quando o buffer enche, {@link #registra} bloqueia quem est dando lances
+ * at abrir espao, e {@link #tentaRegistrar} desiste depois do tempo dado.
+ *
+ * Se um grupo falhar, os lances so regravados um a um para isolar o lance
+ * problemtico; os que continuarem falhando so descartados e contados em
+ * {@link #getFalhas()}. Com {@link Durabilidade#SINCRONA} o erro  lanado
+ * para quem deu o lance; com {@link Durabilidade#GRUPO} ele fica no
+ * {@link LancePendente} devolvido por {@link #registra}.
+ *
+ * Cada lance leva uma chave nica (gravada em Lance.chaveDeIdempotencia). Se
+ * o processo cair depois do commit de um grupo e antes da confirmao no
+ * dirio, {@link #inicia()} devolve ao buffer lances que j esto no banco;
+ * pela chave, eles so reconhecidos e pulados em vez de gravados de novo.
+ */
+public class GravadorDeLances {
+
+	private final CriadorDeSessao criadorDeSessao;
+	private final DiarioDeLances diario;
+	private final Durabilidade durabilidade;
+	private final int tamanhoDoGrupo;
+	private final long esperaMaximaEmMillis;
+	private final BlockingQueue<LancePendente> buffer;
+	private final Semaphore espacoLivre;
+	private final String prefixoDasChaves = UUID.randomUUID().toString();
+
+	private final Object registro = new Object();
+	private long ultimaSequencia;
+
+	private final AtomicLong gravados = new AtomicLong();
+	private final AtomicLong grupos = new AtomicLong();
+	private final AtomicLong falhas = new AtomicLong();
+
+	private volatile boolean ativo;
+	private volatile boolean gravando;
+	private Thread gravadora;
+	private RankingDeLances ranking;
+	private IndiceDeLeiloesAbertos indice;
+
+	public GravadorDeLances(CriadorDeSessao criadorDeSessao, DiarioDeLances diario, Durabilidade durabilidade,
+			int capacidade, int tamanhoDoGrupo, long esperaMaxima, TimeUnit unidade) {
+		if (capacidade <= 0 || tamanhoDoGrupo <= 0 || esperaMaxima < 0) {
+			throw new IllegalArgumentException("Configurao invlida para o gravador de lances");
+		}
+		this.criadorDeSessao = criadorDeSessao;
+		this.diario = diario;
+		this.durabilidade = durabilidade;
+		this.tamanhoDoGrupo = tamanhoDoGrupo;
+		this.esperaMaximaEmMillis = unidade.toMillis(esperaMaxima);
+		this.buffer = new ArrayBlockingQueue<LancePendente>(capacidade);
+		this.espacoLivre = new Semaphore(capacidade);
+	}
+
+	/*
+	 * Repassa ao ranking os lances gravados, como faz o LeilaoDao.
+	 */
+	public GravadorDeLances comRanking(RankingDeLances ranking) {
+		this.ranking = ranking;
+		return this;
+	}
+
+	/*
+	 * Idem para o ndice de leiles abertos, que conta os lances de cada um.
+	 */
+	public GravadorDeLances comIndice(IndiceDeLeiloesAbertos indice) {
+		this.indice = indice;
+		return this;
+	}
+
+	/**
+	 * Inicia a thread de gravao e devolve ao buffer os lances que ficaram sem
+	 * confirmao no dirio, caso o processo tenha cado antes de grav-los.
+	 *
+	 * Novos lances s so aceitos depois da recuperao inteira: antes disso
+	 * um lance novo poderia ter sua linha apagada pelo limpa(), ou receber uma
+	 * sequncia abaixo das recuperadas e passar na frente delas no buffer.
+	 */
+	public synchronized void inicia() throws InterruptedException {
+		if (gravadora != null) {
+			throw new IllegalStateException("O gravador j foi iniciado");
+		}
+
+		List<LancePendente> pendentes = diario.pendentes();
+		if (pendentes.isEmpty()) {
+			// comeamos as sequncias do zero, ento confirmaes antigas no servem mais
+			diario.limpa();
+		}
+		for (LancePendente lance : pendentes) {
+			ultimaSequencia = Math.max(ultimaSequencia, lance.getSequencia());
+		}
+
+		// a thread j grava os recuperados, que podem no caber no buffer de uma vez
+		gravando = true;
+		gravadora = new Thread(new Runnable() {
+			public void run() {
+				esvaziaBuffer();
+			}
+		}, "gravador-de-lances");
+		gravadora.setDaemon(true);
+		gravadora.start();
+
+		for (LancePendente lance : pendentes) {
+			espacoLivre.acquire();
+			buffer.add(lance);
+		}
+		ativo = true;
+	}
+
+	/**
+	 * Para de aceitar lances, espera o buffer ser gravado e fecha o dirio.
+	 */
+	public synchronized void para() throws InterruptedException {
+		if (gravadora == null) {
+			return;
+		}
+		synchronized (registro) {
+			ativo = false;
+		}
+		gravando = false;
+		gravadora.join();
+		gravadora = null;
+		diario.fecha();
+	}
+
+	/**
+	 * Aceita um lance, bloqueando enquanto o buffer estiver cheio.
+	 *
+	 * @return o lance aceito, por onde se acompanha a gravao no banco
+	 */
+	public LancePendente registra(int leilaoId, int usuarioId, double valor, Calendar data)
+			throws InterruptedException {
+		verificaAtivo();
+		espacoLivre.acquire();
+		return aguardaAceite(enfileira(leilaoId, usuarioId, valor, data));
+	}
+
+	/**
+	 * Como {@link #registra}, mas desiste e devolve null se o buffer continuar
+	 * cheio depois do tempo dado.
+	 */
+	public LancePendente tentaRegistrar(int leilaoId, int usuarioId, double valor, Calendar data, long espera,
+			TimeUnit unidade) throws InterruptedException {
+		verificaAtivo();
+		if (!espacoLivre.tryAcquire(espera, unidade)) {
+			return null;
+		}
+		return aguardaAceite(enfileira(leilaoId, usuarioId, valor, data));
+	}
+
+	/*
+	 * S chamado depois de reservar espao no buffer, ento o add nunca falha. A
+	 * sequncia, o dirio e o buffer mudam juntos para que a ordem do dirio seja
+	 * a mesma ordem de gravao.
+	 *
+	 * Quem esperava espao enquanto o gravador parava  recusado aqui, sob o
+	 * mesmo lock do para(): depois dele a thread de gravao pode j ter sado
+	 * e ningum gravaria o lance.
+	 */
+	private LancePendente enfileira(int leilaoId, int usuarioId, double valor, Calendar data) {
+		synchronized (registro) {
+			if (!ativo) {
+				espacoLivre.release();
+				throw new IllegalStateException("O gravador de lances no est ativo");
+			}
+			long sequencia = ++ultimaSequencia;
+			LancePendente lance = new LancePendente(sequencia, leilaoId, usuarioId, valor, data.getTimeInMillis(),
+					prefixoDasChaves + ":" + sequencia);
+			try {
+				diario.registra(lance);
+			} catch (RuntimeException e) {
+				ultimaSequencia--;
+				espacoLivre.release();
+				throw e;
+			}
+			buffer.add(lance);
+			return lance;
+		}
+	}
+
+	private void verificaAtivo() {
+		if (!ativo) {
+			throw new IllegalStateException("O gravador de lances no est ativo");
+		}
+	}
+
+	private LancePendente aguardaAceite(LancePendente lance) throws InterruptedException {
+		if (durabilidade == Durabilidade.SINCRONA) {
+			lance.aguardaGravacao();
+		} else {
+			diario.sincronizaAte(lance.getSequencia());
+		}
+		return lance;
+	}
+
+	private void esvaziaBuffer() {
+		List<LancePendente> grupo = new ArrayList<LancePendente>(tamanhoDoGrupo);
+		try {
+			while (gravando || !buffer.isEmpty()) {
+				LancePendente primeiro = buffer.poll(esperaMaximaEmMillis + 1, TimeUnit.MILLISECONDS);
+				if (primeiro == null) {
+					continue;
+				}
+				grupo.add(primeiro);
+
+				long limite = System.currentTimeMillis() + esperaMaximaEmMillis;
+				while (grupo.size() < tamanhoDoGrupo) {
+					buffer.drainTo(grupo, tamanhoDoGrupo - grupo.size());
+					long restante = limite - System.currentTimeMillis();
+					if (grupo.size() == tamanhoDoGrupo || restante <= 0) {
+						break;
+					}
+					LancePendente proximo = buffer.poll(restante, TimeUnit.MILLISECONDS);
+					if (proximo == null) {
+						break;
+					}
+					grupo.add(proximo);
+				}
+
+				espacoLivre.release(grupo.size());
+				grava(grupo);
+				grupo.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void grava(List<LancePendente> grupo) {
+		try {
+			gravaNumaTransacao(grupo);
+			grupos.incrementAndGet();
+			gravados.addAndGet(grupo.size());
+			for (LancePendente lance : grupo) {
+				lance.gravou();
+			}
+		} catch (RuntimeException erroDoGrupo) {
+			for (LancePendente lance : grupo) {
+				try {
+					gravaNumaTransacao(Collections.singletonList(lance));
+					gravados.incrementAndGet();
+					lance.gravou();
+				} catch (RuntimeException e) {
+					falhas.incrementAndGet();
+					lance.falhou(e);
+				}
+			}
+		}
+
+		long confirmadoAte = grupo.get(grupo.size() - 1).getSequencia();
+		synchronized (registro) {
+			if (confirmadoAte == ultimaSequencia) {
+				diario.limpa();
+			} else {
+				diario.confirma(confirmadoAte);
+			}
+		}
+	}
+
+	private void gravaNumaTransacao(List<LancePendente> grupo) {
+		Session session = criadorDeSessao.getSession();
+		try {
+			LeilaoDao dao = new LeilaoDao(session).comRanking(ranking).comIndice(indice);
+			session.beginTransaction();
+			Set<String> jaGravadas = dao.chavesGravadas(chavesRecuperadas(grupo));
+			for (LancePendente pendente : grupo) {
+				if (jaGravadas.contains(pendente.getChave())) {
+					continue;
+				}
+				Leilao leilao = (Leilao) session.load(Leilao.class, pendente.getLeilaoId());
+				Usuario usuario = (Usuario) session.load(Usuario.class, pendente.getUsuarioId());
+				Lance lance = new Lance(pendente.getData(), usuario, pendente.getValor(), leilao);
+				lance.setChaveDeIdempotencia(pendente.getChave());
+				dao.salvaLance(lance);
+			}
+			session.getTransaction().commit();
+		} catch (RuntimeException e) {
+			if (session.getTransaction().isActive()) {
+				session.getTransaction().rollback();
+			}
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	/*
+	 * S os lances lidos do dirio podem j estar no banco; os demais nem
+	 * precisam ser consultados.
+	 */
+	private List<String> chavesRecuperadas(List<LancePendente> grupo) {
+		List<String> chaves = new ArrayList<String>();
+		for (LancePendente lance : grupo) {
+			if (lance.isRecuperado() && lance.getChave() != null) {
+				chaves.add(lance.getChave());
+			}
+		}
+		return chaves;
+	}
+
+	public int getPendentes() {
+		return buffer.size();
+	}
+
+	public long getGravados() {
+		return gravados.get();
+	}
+
+	public long getGrupos() {
+		return grupos.get();
+	}
+
+	public long getFalhas() {
+		return falhas.get();
+	}
+}
@@ -0,0 +1,340 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dominio.Leilao;
+
+/**
+ * ndice em memria dos leiles abertos, ordenado por valor inicial e por
+ * data de abertura, para responder s consultas por faixa do
+ * {@link LeilaoDao} sem ir ao banco; o banco s carrega os leiles da pgina
+ * pedida.
+ *
+ * As chaves ficam em arrays de long ordenados, paralelos a um array de ids:
+ * contar ou listar uma faixa custa duas buscas binrias. A insero e a
+ * remoo deslocam o trecho  direita do array.
+ *
+ * Leiles sem valor inicial ficam fora das chaves por valor, como ficam fora
+ * do BETWEEN das consultas do banco; sem data de abertura, fora das chaves por
+ * perodo.
+ *
+ * O ndice  mantido pelo {@link LeilaoDao} depois de cada commit; alteraes
+ * feitas por fora do DAO s aparecem depois de um novo {@link #carrega}.
+ */
+public class IndiceDeLeiloesAbertos {
+
+	/**
+	 * Um leilo  "disputado" quando tem mais lances do que isto, como em
+	 * {@link LeilaoDao#disputadosEntre}.
+	 */
+	public static final int LANCES_PARA_DISPUTA = 3;
+
+	private static final long SEM_ABERTURA = Long.MIN_VALUE;
+
+	private final ReadWriteLock trava = new ReentrantReadWriteLock();
+	private final Map<Integer, Entrada> entradas = new HashMap<Integer, Entrada>();
+	private final ChavesOrdenadas porValor = new ChavesOrdenadas();
+	private final ChavesOrdenadas disputadosPorValor = new ChavesOrdenadas();
+	private final ChavesOrdenadas porAbertura = new ChavesOrdenadas();
+
+	/**
+	 * Descarta o contedo e recarrega o ndice com os leiles abertos do banco.
+	 */
+	@SuppressWarnings("unchecked")
+	public void carrega(Session session) {
+		List<Object[]> leiloes = session
+				.createQuery("select l.id, l.valorInicial, l.dataAbertura from Leilao l where l.encerrado = false")
+				.list();
+		List<Object[]> lances = session.createQuery("select la.leilao.id, count(la) from Lance la "
+				+ "where la.leilao.encerrado = false group by la.leilao.id").list();
+
+		Map<Integer, Long> lancesPorLeilao = new HashMap<Integer, Long>();
+		for (Object[] linha : lances) {
+			lancesPorLeilao.put((Integer) linha[0], (Long) linha[1]);
+		}
+
+		trava.writeLock().lock();
+		try {
+			entradas.clear();
+			porValor.limpa();
+			disputadosPorValor.limpa();
+			porAbertura.limpa();
+			for (Object[] linha : leiloes) {
+				Long quantidade = lancesPorLeilao.get(linha[0]);
+				insere((Integer) linha[0], (Double) linha[1], (Calendar) linha[2],
+						quantidade == null ? 0 : quantidade.intValue());
+			}
+		} finally {
+			trava.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Coloca o leilo no ndice, ou atualiza as chaves dele se j estiver l. Os
+	 * lances contados at aqui so mantidos; leiles encerrados so retirados.
+	 */
+	public void registra(Leilao leilao) {
+		if (leilao.isEncerrado()) {
+			remove(leilao.getId());
+		} else {
+			registra(leilao.getId(), leilao.getValorInicial(), leilao.getDataAbertura());
+		}
+	}
+
+	public void registra(int leilaoId, Double valorInicial, Calendar abertura) {
+		trava.writeLock().lock();
+		try {
+			Entrada anterior = retira(leilaoId);
+			insere(leilaoId, valorInicial, abertura, anterior == null ? 0 : anterior.lances);
+		} finally {
+			trava.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Troca s o valor inicial de um leilo que j est no ndice.
+	 */
+	public void alteraValorInicial(int leilaoId, double valorInicial) {
+		trava.writeLock().lock();
+		try {
+			Entrada anterior = retira(leilaoId);
+			if (anterior != null) {
+				insere(leilaoId, valorInicial, anterior.abertura, anterior.lances);
+			}
+		} finally {
+			trava.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Conta mais um lance para o leilo; leiles fora do ndice so ignorados.
+	 */
+	public void registraLance(int leilaoId) {
+		trava.writeLock().lock();
+		try {
+			Entrada entrada = entradas.get(leilaoId);
+			if (entrada == null) {
+				return;
+			}
+			entrada.lances++;
+			if (entrada.lances == LANCES_PARA_DISPUTA + 1 && entrada.temValor) {
+				disputadosPorValor.insere(entrada.valor, leilaoId);
+			}
+		} finally {
+			trava.writeLock().unlock();
+		}
+	}
+
+	public void remove(int leilaoId) {
+		trava.writeLock().lock();
+		try {
+			retira(leilaoId);
+		} finally {
+			trava.writeLock().unlock();
+		}
+	}
+
+	public int tamanho() {
+		trava.readLock().lock();
+		try {
+			return entradas.size();
+		} finally {
+			trava.readLock().unlock();
+		}
+	}
+
+	public int contaDisputadosEntre(double inicio, double fim) {
+		return conta(disputadosPorValor, ordenavel(inicio), ordenavel(fim));
+	}
+
+	/**
+	 * Ids dos leiles disputados com valor inicial na faixa, do menor valor para
+	 * o maior, a partir da posio "primeiro".
+	 */
+	public List<Integer> disputadosEntre(double inicio, double fim, int primeiro, int maximo) {
+		return ids(disputadosPorValor, ordenavel(inicio), ordenavel(fim), primeiro, maximo);
+	}
+
+	public int contaPorValorInicial(double inicio, double fim) {
+		return conta(porValor, ordenavel(inicio), ordenavel(fim));
+	}
+
+	public List<Integer> porValorInicial(double inicio, double fim, int primeiro, int maximo) {
+		return ids(porValor, ordenavel(inicio), ordenavel(fim), primeiro, maximo);
+	}
+
+	public int contaPorPeriodo(Calendar inicio, Calendar fim) {
+		return conta(porAbertura, inicio.getTimeInMillis(), fim.getTimeInMillis());
+	}
+
+	/**
+	 * Ids dos leiles abertos na faixa de datas, do mais antigo para o mais novo.
+	 */
+	public List<Integer> porPeriodo(Calendar inicio, Calendar fim, int primeiro, int maximo) {
+		return ids(porAbertura, inicio.getTimeInMillis(), fim.getTimeInMillis(), primeiro, maximo);
+	}
+
+	private int conta(ChavesOrdenadas chaves, long de, long ate) {
+		trava.readLock().lock();
+		try {
+			return chaves.conta(de, ate);
+		} finally {
+			trava.readLock().unlock();
+		}
+	}
+
+	private List<Integer> ids(ChavesOrdenadas chaves, long de, long ate, int primeiro, int maximo) {
+		trava.readLock().lock();
+		try {
+			return chaves.ids(de, ate, primeiro, maximo);
+		} finally {
+			trava.readLock().unlock();
+		}
+	}
+
+	private void insere(int id, Double valorInicial, Calendar abertura, int lances) {
+		insere(id, valorInicial, abertura == null ? SEM_ABERTURA : abertura.getTimeInMillis(), lances);
+	}
+
+	private void insere(int id, Double valorInicial, long abertura, int lances) {
+		Entrada entrada = valorInicial == null ? new Entrada(abertura, lances)
+				: new Entrada(ordenavel(valorInicial), abertura, lances);
+		entradas.put(id, entrada);
+
+		if (entrada.temValor) {
+			porValor.insere(entrada.valor, id);
+		}
+		if (entrada.abertura != SEM_ABERTURA) {
+			porAbertura.insere(entrada.abertura, id);
+		}
+		if (entrada.temValor && entrada.lances > LANCES_PARA_DISPUTA) {
+			disputadosPorValor.insere(entrada.valor, id);
+		}
+	}
+
+	private Entrada retira(int id) {
+		Entrada entrada = entradas.remove(id);
+		if (entrada != null) {
+			if (entrada.temValor) {
+				porValor.remove(entrada.valor, id);
+			}
+			if (entrada.abertura != SEM_ABERTURA) {
+				porAbertura.remove(entrada.abertura, id);
+			}
+			if (entrada.temValor && entrada.lances > LANCES_PARA_DISPUTA) {
+				disputadosPorValor.remove(entrada.valor, id);
+			}
+		}
+		return entrada;
+	}
+
+	/*
+	 * Leva o double para um long com a mesma ordem, para que valores e datas
+	 * usem o mesmo array ordenado.
+	 */
+	static long ordenavel(double valor) {
+		long bits = Double.doubleToLongBits(valor == 0.0 ? 0.0 : valor);
+		return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+	}
+
+	private static class Entrada {
+		final boolean temValor;
+		final long valor;
+		final long abertura;
+		int lances;
+
+		Entrada(long valor, long abertura, int lances) {
+			this.temValor = true;
+			this.valor = valor;
+			this.abertura = abertura;
+			this.lances = lances;
+		}
+
+		Entrada(long abertura, int lances) {
+			this.temValor = false;
+			this.valor = 0;
+			this.abertura = abertura;
+			this.lances = lances;
+		}
+	}
+
+	/*
+	 * Pares (chave, id) ordenados pela chave e, no empate, pelo id.
+	 */
+	private static class ChavesOrdenadas {
+		private long[] chaves = new long[16];
+		private int[] ids = new int[16];
+		private int tamanho;
+
+		void insere(long chave, int id) {
+			int posicao = posicao(chave, id);
+			if (tamanho == chaves.length) {
+				chaves = Arrays.copyOf(chaves, tamanho * 2);
+				ids = Arrays.copyOf(ids, tamanho * 2);
+			}
+			System.arraycopy(chaves, posicao, chaves, posicao + 1, tamanho - posicao);
+			System.arraycopy(ids, posicao, ids, posicao + 1, tamanho - posicao);
+			chaves[posicao] = chave;
+			ids[posicao] = id;
+			tamanho++;
+		}
+
+		void remove(long chave, int id) {
+			int posicao = posicao(chave, id);
+			if (posicao < tamanho && chaves[posicao] == chave && ids[posicao] == id) {
+				System.arraycopy(chaves, posicao + 1, chaves, posicao, tamanho - posicao - 1);
+				System.arraycopy(ids, posicao + 1, ids, posicao, tamanho - posicao - 1);
+				tamanho--;
+			}
+		}
+
+		void limpa() {
+			tamanho = 0;
+		}
+
+		int conta(long de, long ate) {
+			if (de > ate) {
+				return 0;
+			}
+			return posicao(ate, Integer.MAX_VALUE) - posicao(de, Integer.MIN_VALUE);
+		}
+
+		List<Integer> ids(long de, long ate, int primeiro, int maximo) {
+			List<Integer> resultado = new ArrayList<Integer>();
+			if (de > ate) {
+				return resultado;
+			}
+			int fim = posicao(ate, Integer.MAX_VALUE);
+			for (int i = posicao(de, Integer.MIN_VALUE) + primeiro; i < fim && resultado.size() < maximo; i++) {
+				resultado.add(ids[i]);
+			}
+			return resultado;
+		}
+
+		/*
+		 * Primeira posio cujo par  maior ou igual a (chave, id).
+		 */
+		private int posicao(long chave, int id) {
+			int baixo = 0;
+			int alto = tamanho;
+			while (baixo < alto) {
+				int meio = (baixo + alto) >>> 1;
+				if (chaves[meio] < chave || (chaves[meio] == chave && ids[meio] < id)) {
+					baixo = meio + 1;
+				} else {
+					alto = meio;
+				}
+			}
+			return baixo;
+		}
+	}
+}
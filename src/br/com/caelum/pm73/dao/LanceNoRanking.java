@@ -0,0 +1,49 @@
+package br.com.caelum.pm73.dao;
+
+/**
+ * Uma posio do {@link RankingDeLances}: s o que as pginas de leilo ao
+ * vivo precisam mostrar, sem segurar entidades.
+ */
+public class LanceNoRanking {
+
+	private final int lanceId;
+	private final int usuarioId;
+	private final double valor;
+	private final long data;
+
+	public LanceNoRanking(int lanceId, int usuarioId, double valor, long data) {
+		this.lanceId = lanceId;
+		this.usuarioId = usuarioId;
+		this.valor = valor;
+		this.data = data;
+	}
+
+	public int getLanceId() {
+		return lanceId;
+	}
+
+	public int getUsuarioId() {
+		return usuarioId;
+	}
+
+	public double getValor() {
+		return valor;
+	}
+
+	public long getData() {
+		return data;
+	}
+
+	/*
+	 * Maior valor primeiro; no empate, ganha o lance de data mais antiga e, na
+	 * mesma data, o de menor id. O id sozinho no diz qual lance veio antes:
+	 * ele sai de blocos reservados por cada JVM.
+	 */
+	boolean estaAFrenteDe(LanceNoRanking outro) {
+		int comparacao = Double.compare(valor, outro.valor);
+		if (comparacao != 0) {
+			return comparacao > 0;
+		}
+		return data != outro.data ? data < outro.data : lanceId < outro.lanceId;
+	}
+}
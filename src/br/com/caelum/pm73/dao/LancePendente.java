@@ -0,0 +1,113 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.Calendar;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Um lance aceito pelo {@link GravadorDeLances} que ainda pode no ter chegado
+ * ao banco. Guardamos s os ids do leilo e do usurio para no segurar
+ * entidades de outra sesso no buffer.
+ *
+ * Tambm serve de recibo para quem deu o lance: {@link #aguardaGravacao()}
+ * espera o lance chegar ao banco e relana o erro se ele no chegou.
+ */
+public class LancePendente {
+
+	private final long sequencia;
+	private final int leilaoId;
+	private final int usuarioId;
+	private final double valor;
+	private final long dataEmMillis;
+	private final String chave;
+	private boolean recuperado;
+
+	private final CountDownLatch gravado = new CountDownLatch(1);
+	private volatile RuntimeException erro;
+
+	public LancePendente(long sequencia, int leilaoId, int usuarioId, double valor, long dataEmMillis) {
+		this(sequencia, leilaoId, usuarioId, valor, dataEmMillis, null);
+	}
+
+	public LancePendente(long sequencia, int leilaoId, int usuarioId, double valor, long dataEmMillis,
+			String chave) {
+		this.sequencia = sequencia;
+		this.leilaoId = leilaoId;
+		this.usuarioId = usuarioId;
+		this.valor = valor;
+		this.dataEmMillis = dataEmMillis;
+		this.chave = chave;
+	}
+
+	public long getSequencia() {
+		return sequencia;
+	}
+
+	public int getLeilaoId() {
+		return leilaoId;
+	}
+
+	public int getUsuarioId() {
+		return usuarioId;
+	}
+
+	public double getValor() {
+		return valor;
+	}
+
+	public Calendar getData() {
+		Calendar data = Calendar.getInstance();
+		data.setTimeInMillis(dataEmMillis);
+		return data;
+	}
+
+	long getDataEmMillis() {
+		return dataEmMillis;
+	}
+
+	/*
+	 * Vai para Lance.chaveDeIdempotencia, para sabermos se um lance do dirio
+	 * j chegou ao banco.
+	 */
+	public String getChave() {
+		return chave;
+	}
+
+	/*
+	 * Lido do dirio depois de uma queda: pode j ter sido gravado.
+	 */
+	LancePendente recuperado() {
+		this.recuperado = true;
+		return this;
+	}
+
+	boolean isRecuperado() {
+		return recuperado;
+	}
+
+	public boolean isGravado() {
+		return gravado.getCount() == 0 && erro == null;
+	}
+
+	/*
+	 * O erro que impediu o lance de chegar ao banco, ou null.
+	 */
+	public RuntimeException getErro() {
+		return erro;
+	}
+
+	void gravou() {
+		gravado.countDown();
+	}
+
+	void falhou(RuntimeException erro) {
+		this.erro = erro;
+		gravado.countDown();
+	}
+
+	public void aguardaGravacao() throws InterruptedException {
+		gravado.await();
+		if (erro != null) {
+			throw erro;
+		}
+	}
+}
@@ -1,8 +1,17 @@
 package br.com.caelum.pm73.dao;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
 import org.hibernate.Session;
 
 import br.com.caelum.pm73.dominio.Lance;
@@ -11,27 +20,122 @@ import br.com.caelum.pm73.dominio.Usuario;
 
 public class LeilaoDao {
 
+	private static final int IDS_POR_CONSULTA = 1000;
+
 	private final Session session;
+	private RankingDeLances ranking;
+	private IndiceDeLeiloesAbertos indice;
+	private boolean somenteLeitura;
 
 	public LeilaoDao(Session session) {
 		this.session = session;
 	}
 
+	/*
+	 * Com um ranking, cada lance salvo e cada leilo encerrado ou apagado por
+	 * este DAO  repassado a ele depois do commit.
+	 */
+	public LeilaoDao comRanking(RankingDeLances ranking) {
+		this.ranking = ranking;
+		return this;
+	}
+
+	/*
+	 * Com um ndice, as consultas por faixa de valor inicial e de data de
+	 * abertura saem dele, e o banco s carrega os leiles encontrados. O ndice
+	 *  atualizado depois do commit das escritas deste DAO.
+	 */
+	public LeilaoDao comIndice(IndiceDeLeiloesAbertos indice) {
+		this.indice = indice;
+		return this;
+	}
+
+	/*
+	 * As consultas deste DAO passam a devolver entidades somente leitura, sem
+	 * cpia para o dirty checking, e no fazem flush da sesso antes de rodar.
+	 * Alteraes nessas entidades no vo para o banco.
+	 *
+	 *  s o modo somente leitura do Hibernate: a conexo continua comum, porque
+	 * a sesso pode ser de outros DAOs que gravam (e o HSQLDB no deixa trocar
+	 * a marcao no meio de uma transao). Para o banco recusar escritas, use
+	 * uma sesso de CriadorDeSessao.getSessionSomenteLeitura().
+	 */
+	public LeilaoDao somenteLeitura() {
+		this.somenteLeitura = true;
+		return this;
+	}
+
 	public void salvar(Leilao leilao) {
 		session.save(leilao);
+		registraNoIndiceAposCommit(leilao);
 
+		// os lances de um leilo j encerrado no entram no ranking
+		RankingDeLances ranking = leilao.isEncerrado() ? null : this.ranking;
 		for (Lance lance : leilao.getLances()) {
-			session.save(lance);
+			salvaLance(lance, ranking);
+		}
+	}
+
+	public void salvaLance(Lance lance) {
+		salvaLance(lance, this.ranking);
+	}
+
+	private void salvaLance(final Lance lance, final RankingDeLances ranking) {
+		session.save(lance);
+
+		if (ranking != null) {
+			AposCommit.executa(session, new Runnable() {
+				public void run() {
+					ranking.registra(lance);
+				}
+			});
+		}
+		if (indice != null) {
+			final IndiceDeLeiloesAbertos indice = this.indice;
+			AposCommit.executa(session, new Runnable() {
+				public void run() {
+					indice.registraLance(lance.getLeilao().getId());
+				}
+			});
 		}
 	}
 
 	public Leilao porId(int id) {
-		return (Leilao) session.get(Leilao.class, id);
+		Leilao leilao = (Leilao) session.get(Leilao.class, id);
+		if (somenteLeitura && leilao != null) {
+			session.setReadOnly(leilao, true);
+		}
+		return leilao;
+	}
+
+	/*
+	 * O lance que o usurio gravou com essa chave de idempotncia, ou null.
+	 * Busca pela restrio nica de (chave, usurio): a mesma chave pode ter
+	 * sido usada por outros usurios.
+	 */
+	public Lance lancePorChave(int usuarioId, String chaveDeIdempotencia) {
+		return (Lance) consulta("from Lance l where l.chaveDeIdempotencia = :chave and l.usuario.id = :usuario")
+				.setParameter("chave", chaveDeIdempotencia).setParameter("usuario", usuarioId).uniqueResult();
+	}
+
+	/*
+	 * Quais dessas chaves j tm lance gravado, de qualquer usurio: serve
+	 * para chaves que no se repetem entre usurios, como as do
+	 * GravadorDeLances. Uma consulta s para o grupo inteiro.
+	 */
+	@SuppressWarnings("unchecked")
+	public Set<String> chavesGravadas(Collection<String> chaves) {
+		if (chaves.isEmpty()) {
+			return Collections.emptySet();
+		}
+		return new HashSet<String>(consulta(
+				"select l.chaveDeIdempotencia from Lance l where l.chaveDeIdempotencia in (:chaves)")
+				.setParameterList("chaves", chaves).list());
 	}
 
 	@SuppressWarnings("unchecked")
 	public List<Leilao> novos() {
-		return session.createQuery("from Leilao l where usado = false").list();
+		return consulta("from Leilao l where usado = false").list();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -39,50 +143,358 @@ public class LeilaoDao {
 		Calendar seteDiasAtras = Calendar.getInstance();
 		seteDiasAtras.add(Calendar.DAY_OF_MONTH, -7);
 
-		return session.createQuery("from Leilao l where dataAbertura < :data").setParameter("data", seteDiasAtras)
+		return consulta("from Leilao l where dataAbertura < :data").setParameter("data", seteDiasAtras)
 				.list();
 	}
 
+	/*
+	 * Carrega os leiles na ordem dos ids, em blocos; ids que no existem mais
+	 * so ignorados.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Leilao> porIds(List<Integer> ids) {
+		Map<Integer, Leilao> porId = new HashMap<Integer, Leilao>();
+		for (int inicio = 0; inicio < ids.size(); inicio += IDS_POR_CONSULTA) {
+			List<Integer> bloco = ids.subList(inicio, Math.min(inicio + IDS_POR_CONSULTA, ids.size()));
+			for (Leilao leilao : (List<Leilao>) consulta("from Leilao l where l.id in (:ids)")
+					.setParameterList("ids", bloco).list()) {
+				porId.put(leilao.getId(), leilao);
+			}
+		}
+
+		List<Leilao> leiloes = new ArrayList<Leilao>();
+		for (Integer id : ids) {
+			Leilao leilao = porId.get(id);
+			if (leilao != null) {
+				leiloes.add(leilao);
+			}
+		}
+		return leiloes;
+	}
+
 	@SuppressWarnings("unchecked")
 	public List<Leilao> porPeriodo(Calendar inicio, Calendar fim) {
-		return session
-				.createQuery("from Leilao l where l.dataAbertura between :inicio and :fim and l.encerrado = false")
+		if (indice != null) {
+			return porIds(indice.porPeriodo(inicio, fim, 0, Integer.MAX_VALUE));
+		}
+		return consulta("from Leilao l where l.dataAbertura between :inicio and :fim and l.encerrado = false")
 				.setParameter("inicio", inicio).setParameter("fim", fim).list();
 	}
 
+	/*
+	 * Uma pgina dos leiles abertos no perodo, do mais antigo para o mais
+	 * novo.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Leilao> porPeriodo(Calendar inicio, Calendar fim, int primeiro, int maximo) {
+		if (indice != null) {
+			return porIds(indice.porPeriodo(inicio, fim, primeiro, maximo));
+		}
+		return consulta("from Leilao l where l.dataAbertura between :inicio and :fim and l.encerrado = false "
+				+ "order by l.dataAbertura, l.id")
+				.setParameter("inicio", inicio).setParameter("fim", fim).setFirstResult(primeiro)
+				.setMaxResults(maximo).list();
+	}
+
+	public long totalPorPeriodo(Calendar inicio, Calendar fim) {
+		if (indice != null) {
+			return indice.contaPorPeriodo(inicio, fim);
+		}
+		return (Long) consulta("select count(l) from Leilao l where l.dataAbertura between :inicio and :fim "
+				+ "and l.encerrado = false")
+				.setParameter("inicio", inicio).setParameter("fim", fim).uniqueResult();
+	}
+
 	@SuppressWarnings("unchecked")
 	public List<Leilao> disputadosEntre(double inicio, double fim) {
-		return session
-				.createQuery("FROM Leilao l WHERE l.valorInicial "
-						+ "BETWEEN :inicio AND :fim AND l.encerrado = false AND size(l.lances) > 3")
+		if (indice != null) {
+			return porIds(indice.disputadosEntre(inicio, fim, 0, Integer.MAX_VALUE));
+		}
+		return consulta("FROM Leilao l WHERE l.valorInicial "
+				+ "BETWEEN :inicio AND :fim AND l.encerrado = false AND size(l.lances) > 3")
 				.setParameter("inicio", inicio).setParameter("fim", fim).list();
 	}
 
+	/*
+	 * Uma pgina dos leiles disputados na faixa, do menor valor inicial para o
+	 * maior.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Leilao> disputadosEntre(double inicio, double fim, int primeiro, int maximo) {
+		if (indice != null) {
+			return porIds(indice.disputadosEntre(inicio, fim, primeiro, maximo));
+		}
+		return consulta("FROM Leilao l WHERE l.valorInicial BETWEEN :inicio AND :fim AND l.encerrado = false "
+				+ "AND size(l.lances) > 3 ORDER BY l.valorInicial, l.id")
+				.setParameter("inicio", inicio).setParameter("fim", fim).setFirstResult(primeiro)
+				.setMaxResults(maximo).list();
+	}
+
+	public long totalDisputadosEntre(double inicio, double fim) {
+		if (indice != null) {
+			return indice.contaDisputadosEntre(inicio, fim);
+		}
+		return (Long) consulta("SELECT count(l) FROM Leilao l WHERE l.valorInicial BETWEEN :inicio AND :fim "
+				+ "AND l.encerrado = false AND size(l.lances) > 3")
+				.setParameter("inicio", inicio).setParameter("fim", fim).uniqueResult();
+	}
+
 	public Long total() {
-		return (Long) session.createQuery("select count(l) from Leilao l where l.encerrado = false").uniqueResult();
+		return (Long) consulta("select count(l) from Leilao l where l.encerrado = false").uniqueResult();
 	}
 
 	public void atualiza(Leilao leilao) {
 		session.merge(leilao);
+
+		if (leilao.isEncerrado()) {
+			tiraDosAbertosAposCommit(Collections.singletonList(leilao.getId()));
+		} else {
+			registraNoIndiceAposCommit(leilao);
+		}
 	}
 
 	public void deleta(Leilao leilao) {
+		session.createQuery("delete from Participacao p where p.chave.leilaoId = :leilao")
+				.setParameter("leilao", leilao.getId()).executeUpdate();
 		session.delete(leilao);
+		tiraDosAbertosAposCommit(Collections.singletonList(leilao.getId()));
 	}
 
+	/*
+	 * O DELETE em lote no passa pelos eventos do Hibernate, ento publicamos
+	 * ns mesmos a alterao.
+	 */
 	public void deletaEncerrados() {
+		session.createQuery("delete from Participacao p where p.chave.leilaoId in "
+				+ "(select l.id from Leilao l where l.encerrado = true)").executeUpdate();
 		session.createQuery("delete from Leilao l where l.encerrado = true").executeUpdate();
+		publicaAposCommit(TipoDeAlteracao.REMOCAO_EM_LOTE, null);
 	}
 
+	/*
+	 * Encerra no mximo "tamanhoDoLote" leiles abertos antes do limite, sem
+	 * carreg-los: buscamos s os ids e encerramos o lote com encerra(ids).
+	 * Devolve quantos leiles foram encerrados; um valor menor que o lote indica
+	 * que no h mais leiles a encerrar.
+	 */
 	@SuppressWarnings("unchecked")
+	public int encerraAbertosAntesDe(Calendar limite, int tamanhoDoLote) {
+		List<Integer> ids = session
+				.createQuery("select l.id from Leilao l where l.dataAbertura < :limite and l.encerrado = false "
+						+ "order by l.dataAbertura")
+				.setParameter("limite", limite).setMaxResults(tamanhoDoLote).list();
+
+		// a consulta acima j trouxe s os abertos
+		return encerraAbertos(ids);
+	}
+
+	/*
+	 * Encerra os leiles sem carreg-los nem passar pelos lances: um UPDATE por
+	 * bloco de ids. Ranking, ndice e fluxo de alteraes so avisados depois do
+	 * commit, e os leiles que esta sesso j tem carregados so encerrados
+	 * tambm na memria. Ids de leiles j encerrados ou inexistentes so
+	 * ignorados, sem aviso. Devolve quantos leiles abertos foram encerrados.
+	 */
+	@SuppressWarnings("unchecked")
+	public int encerra(List<Integer> ids) {
+		List<Integer> abertos = new ArrayList<Integer>();
+		for (int inicio = 0; inicio < ids.size(); inicio += IDS_POR_CONSULTA) {
+			List<Integer> bloco = ids.subList(inicio, Math.min(inicio + IDS_POR_CONSULTA, ids.size()));
+			abertos.addAll(session.createQuery("select l.id from Leilao l where l.id in (:ids) and l.encerrado = false")
+					.setParameterList("ids", bloco).list());
+		}
+		return encerraAbertos(abertos);
+	}
+
+	private int encerraAbertos(List<Integer> ids) {
+		int encerrados = 0;
+		for (int inicio = 0; inicio < ids.size(); inicio += IDS_POR_CONSULTA) {
+			List<Integer> bloco = ids.subList(inicio, Math.min(inicio + IDS_POR_CONSULTA, ids.size()));
+			encerrados += session
+					.createQuery("update Leilao set encerrado = true where id in (:ids) and encerrado = false")
+					.setParameterList("ids", bloco).executeUpdate();
+		}
+
+		for (Integer id : ids) {
+			Leilao carregado = NaSessao.carregada(session, Leilao.class, id);
+			if (carregado != null && !carregado.isEncerrado()) {
+				carregado.encerra();
+			}
+		}
+
+		if (!ids.isEmpty()) {
+			List<Integer> copia = new ArrayList<Integer>(ids);
+			tiraDosAbertosAposCommit(copia);
+			publicaAposCommit(TipoDeAlteracao.ATUALIZACAO, copia);
+		}
+		return encerrados;
+	}
+
+	/*
+	 * Troca o valor inicial com um nico UPDATE, sem o merge (que leria a linha
+	 * e passaria por todos os lances). Devolve false se o leilo no existe.
+	 */
+	public boolean alteraValorInicial(final int id, final double valorInicial) {
+		int alterados = session.createQuery("update Leilao set valorInicial = :valor where id = :id")
+				.setParameter("valor", valorInicial).setParameter("id", id).executeUpdate();
+		if (alterados == 0) {
+			return false;
+		}
+
+		Leilao carregado = NaSessao.carregada(session, Leilao.class, id);
+		if (carregado != null) {
+			carregado.setValorInicial(valorInicial);
+		}
+
+		if (indice != null) {
+			final IndiceDeLeiloesAbertos indice = this.indice;
+			AposCommit.executa(session, new Runnable() {
+				public void run() {
+					indice.alteraValorInicial(id, valorInicial);
+				}
+			});
+		}
+		publicaAposCommit(TipoDeAlteracao.ATUALIZACAO, Collections.singletonList(id));
+		return true;
+	}
+
+	public Calendar aberturaMaisAntigaNaoEncerradaAntesDe(Calendar limite) {
+		return (Calendar) consulta("select min(l.dataAbertura) from Leilao l where l.dataAbertura < :limite "
+				+ "and l.encerrado = false")
+				.setParameter("limite", limite).uniqueResult();
+	}
+
 	public List<Leilao> listaLeiloesDoUsuario(Usuario usuario) {
-		return session.createQuery("SELECT DISTINCT lance.leilao FROM Lance lance WHERE lance.usuario = :usuario")
+		return listaLeiloesDoUsuario(usuario, 0, Integer.MAX_VALUE);
+	}
+
+	/*
+	 * Uma pgina dos leiles em que o usurio deu lance, do lance mais recente
+	 * para o mais antigo. Sai da tabela de participaes, que j tem um leilo
+	 * por linha: nada de DISTINCT sobre todos os lances do usurio.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Leilao> listaLeiloesDoUsuario(Usuario usuario, int primeiro, int maximo) {
+		return consulta("SELECT l FROM Participacao p, Leilao l WHERE p.chave.usuarioId = :usuario "
+				+ "AND l.id = p.chave.leilaoId ORDER BY p.ultimoLance DESC, p.chave.leilaoId DESC")
+				.setParameter("usuario", usuario.getId()).setFirstResult(primeiro).setMaxResults(maximo).list();
+	}
+
+	/*
+	 * Refaz a tabela de participaes a partir dos lances, para bancos que j
+	 * tinham lances antes dela. Percorre todos os lances uma vez; devolve
+	 * quantas participaes foram gravadas.
+	 */
+	public int recalculaParticipacoes() {
+		session.createQuery("delete from Participacao").executeUpdate();
+		return session.createSQLQuery("INSERT INTO PARTICIPACAO (USUARIO_ID, LEILAO_ID, ULTIMOLANCE) "
+				+ "SELECT USUARIO_ID, LEILAO_ID, MAX(DATA) FROM LANCE GROUP BY USUARIO_ID, LEILAO_ID")
+				.executeUpdate();
+	}
+
+	/*
+	 * Os maiores lances do leilo, do maior para o menor; no empate vem primeiro
+	 * o lance de data mais antiga, e s na mesma data o de menor id (os ids saem
+	 * em blocos, ento no seguem a ordem dos lances). S os "quantidade"
+	 * lances do topo so carregados.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Lance> maioresLances(Leilao leilao, int quantidade) {
+		return consulta("FROM Lance l WHERE l.leilao = :leilao ORDER BY l.valor DESC, l.data ASC, l.id ASC")
+				.setParameter("leilao", leilao).setMaxResults(quantidade).list();
+	}
+
+	/*
+	 * Leiles abertos cujo maior lance  do usurio. Cada leilo tem um nico
+	 * lance vencedor (no empate, o de data mais antiga e depois o de menor id,
+	 * como em {@link #maioresLances}), ento no precisamos de DISTINCT.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Leilao> leiloesQueOUsuarioEstaVencendo(Usuario usuario) {
+		return consulta("SELECT l.leilao FROM Lance l WHERE l.usuario = :usuario "
+				+ "AND l.leilao.encerrado = false AND NOT EXISTS (FROM Lance outro WHERE outro.leilao = l.leilao "
+				+ "AND (outro.valor > l.valor OR (outro.valor = l.valor AND (outro.data < l.data "
+				+ "OR (outro.data = l.data AND outro.id < l.id)))))")
 				.setParameter("usuario", usuario).list();
 	}
 
 	public double getValorInicialMedioDoUsuario(Usuario usuario) {
-		return (Double) session.createQuery(
+		return (Double) consulta(
 				"SELECT avg(lance.leilao.valorInicial) FROM Lance lance WHERE lance.usuario = :usuario")
 				.setParameter("usuario", usuario).uniqueResult();
 	}
+
+	/*
+	 * Conta s os valores iniciais preenchidos, como o avg faz, para que a
+	 * mdia montada a partir dos shards seja a mesma de um banco s.
+	 */
+	public SomaEQuantidade getSomaDosValoresIniciaisDoUsuario(Usuario usuario) {
+		Object[] resultado = (Object[]) consulta("SELECT sum(lance.leilao.valorInicial), "
+				+ "count(lance.leilao.valorInicial) FROM Lance lance WHERE lance.usuario = :usuario")
+				.setParameter("usuario", usuario).uniqueResult();
+
+		double soma = resultado[0] == null ? 0.0 : ((Number) resultado[0]).doubleValue();
+		return new SomaEQuantidade(soma, ((Number) resultado[1]).longValue());
+	}
+
+	private Query consulta(String hql) {
+		Query query = session.createQuery(hql);
+		if (somenteLeitura) {
+			query.setReadOnly(true).setFlushMode(FlushMode.MANUAL);
+		}
+		return query;
+	}
+
+	private void publicaAposCommit(final TipoDeAlteracao tipo, final List<Integer> leiloes) {
+		final FluxoDeAlteracoes fluxo = OuvinteDeAlteracoes.fluxoDa(session);
+		if (fluxo == null) {
+			return;
+		}
+		AposCommit.executa(session, new Runnable() {
+			public void run() {
+				if (leiloes == null) {
+					fluxo.publica(tipo, "Leilao", null);
+					return;
+				}
+				for (Integer leilao : leiloes) {
+					fluxo.publica(tipo, "Leilao", leilao);
+				}
+			}
+		});
+	}
+
+	private void registraNoIndiceAposCommit(final Leilao leilao) {
+		if (indice == null) {
+			return;
+		}
+		final IndiceDeLeiloesAbertos indice = this.indice;
+		AposCommit.executa(session, new Runnable() {
+			public void run() {
+				indice.registra(leilao);
+			}
+		});
+	}
+
+	/*
+	 * Leiles encerrados ou apagados saem do ranking e do ndice.
+	 */
+	private void tiraDosAbertosAposCommit(final List<Integer> leiloes) {
+		if (ranking == null && indice == null) {
+			return;
+		}
+		final RankingDeLances ranking = this.ranking;
+		final IndiceDeLeiloesAbertos indice = this.indice;
+		AposCommit.executa(session, new Runnable() {
+			public void run() {
+				for (Integer leilao : leiloes) {
+					if (ranking != null) {
+						ranking.remove(leilao);
+					}
+					if (indice != null) {
+						indice.remove(leilao);
+					}
+				}
+			}
+		});
+	}
 }
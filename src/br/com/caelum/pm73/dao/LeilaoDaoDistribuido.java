@@ -0,0 +1,148 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dao.ShardsDeLeilao.TrabalhoNoShard;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * O {@link LeilaoDao} sobre os {@link ShardsDeLeilao}. Operaes sobre um
+ * leilo vo direto ao shard dele; as consultas rodam em todos os shards em
+ * paralelo e os resultados so juntados aqui.
+ *
+ * Cada operao abre e commita a sua prpria sesso em cada shard, ento os
+ * leiles devolvidos j esto desligados da sesso: acessar a coleo de
+ * lances deles dispara LazyInitializationException.
+ */
+public class LeilaoDaoDistribuido {
+
+	private final ShardsDeLeilao shards;
+	private final AtomicInteger proximoShard = new AtomicInteger();
+
+	public LeilaoDaoDistribuido(ShardsDeLeilao shards) {
+		this.shards = shards;
+	}
+
+	/*
+	 * Novos leiles so distribudos em rodzio; a sequncia do shard escolhido
+	 * gera um id que aponta de volta para ele.
+	 */
+	public void salvar(final Leilao leilao) {
+		int shard = (proximoShard.getAndIncrement() & Integer.MAX_VALUE) % shards.getQuantidade();
+		shards.noShard(shard, new TrabalhoNoShard<Void>() {
+			public Void executa(Session session) {
+				new LeilaoDao(session).salvar(leilao);
+				return null;
+			}
+		});
+	}
+
+	public Leilao porId(final int id) {
+		return shards.noShard(shards.shardDoLeilao(id), new TrabalhoNoShard<Leilao>() {
+			public Leilao executa(Session session) {
+				return new LeilaoDao(session).porId(id);
+			}
+		});
+	}
+
+	public List<Leilao> novos() {
+		return junta(shards.emTodos(new TrabalhoNoShard<List<Leilao>>() {
+			public List<Leilao> executa(Session session) {
+				return new LeilaoDao(session).novos();
+			}
+		}));
+	}
+
+	public List<Leilao> antigos() {
+		return junta(shards.emTodos(new TrabalhoNoShard<List<Leilao>>() {
+			public List<Leilao> executa(Session session) {
+				return new LeilaoDao(session).antigos();
+			}
+		}));
+	}
+
+	public List<Leilao> porPeriodo(final Calendar inicio, final Calendar fim) {
+		return junta(shards.emTodos(new TrabalhoNoShard<List<Leilao>>() {
+			public List<Leilao> executa(Session session) {
+				return new LeilaoDao(session).porPeriodo(inicio, fim);
+			}
+		}));
+	}
+
+	public List<Leilao> disputadosEntre(final double inicio, final double fim) {
+		return junta(shards.emTodos(new TrabalhoNoShard<List<Leilao>>() {
+			public List<Leilao> executa(Session session) {
+				return new LeilaoDao(session).disputadosEntre(inicio, fim);
+			}
+		}));
+	}
+
+	public Long total() {
+		long total = 0;
+		for (Long parcial : shards.emTodos(new TrabalhoNoShard<Long>() {
+			public Long executa(Session session) {
+				return new LeilaoDao(session).total();
+			}
+		})) {
+			total += parcial;
+		}
+		return total;
+	}
+
+	/**
+	 * Combina as somas e quantidades de cada shard; devolve NaN se o usurio
+	 * no deu nenhum lance.
+	 */
+	public double getValorInicialMedioDoUsuario(final Usuario usuario) {
+		SomaEQuantidade total = new SomaEQuantidade(0.0, 0);
+		for (SomaEQuantidade parcial : shards.emTodos(new TrabalhoNoShard<SomaEQuantidade>() {
+			public SomaEQuantidade executa(Session session) {
+				return new LeilaoDao(session).getSomaDosValoresIniciaisDoUsuario(usuario);
+			}
+		})) {
+			total = total.mais(parcial);
+		}
+		return total.getMedia();
+	}
+
+	public void atualiza(final Leilao leilao) {
+		shards.noShard(shards.shardDoLeilao(leilao.getId()), new TrabalhoNoShard<Void>() {
+			public Void executa(Session session) {
+				new LeilaoDao(session).atualiza(leilao);
+				return null;
+			}
+		});
+	}
+
+	public void deleta(final Leilao leilao) {
+		shards.noShard(shards.shardDoLeilao(leilao.getId()), new TrabalhoNoShard<Void>() {
+			public Void executa(Session session) {
+				new LeilaoDao(session).deleta(leilao);
+				return null;
+			}
+		});
+	}
+
+	public void deletaEncerrados() {
+		shards.emTodos(new TrabalhoNoShard<Void>() {
+			public Void executa(Session session) {
+				new LeilaoDao(session).deletaEncerrados();
+				return null;
+			}
+		});
+	}
+
+	private static List<Leilao> junta(List<List<Leilao>> porShard) {
+		List<Leilao> todos = new ArrayList<Leilao>();
+		for (List<Leilao> leiloes : porShard) {
+			todos.addAll(leiloes);
+		}
+		return todos;
+	}
+}
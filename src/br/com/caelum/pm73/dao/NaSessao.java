@@ -0,0 +1,30 @@
+package br.com.caelum.pm73.dao;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Acesso s entidades que a sesso j tem carregadas, sem ir ao banco.
+ *
+ * Um UPDATE em HQL no mexe nessas entidades; se uma delas continuasse com o
+ * valor antigo, o prximo flush poderia grav-lo de volta. Os DAOs usam isto
+ * para aplicar tambm na memria o que mudaram em lote.
+ */
+class NaSessao {
+
+	private NaSessao() {
+	}
+
+	/**
+	 * A entidade carregada na sesso com esse id, ou null se ela no estiver l
+	 * (ou for s um proxy ainda no inicializado).
+	 */
+	static <T> T carregada(Session session, Class<T> classe, int id) {
+		SessionImplementor implementor = (SessionImplementor) session;
+		EntityPersister persister = implementor.getFactory().getEntityPersister(classe.getName());
+		EntityKey chave = implementor.generateEntityKey(id, persister);
+		return classe.cast(implementor.getPersistenceContext().getEntity(chave));
+	}
+}
@@ -0,0 +1,79 @@
+package br.com.caelum.pm73.dao;
+
+import java.io.Serializable;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Leva ao {@link FluxoDeAlteracoes} as inseres, atualizaes e remoes de
+ * entidades feitas pelo Hibernate.
+ *
+ * No usamos os eventos POST_COMMIT_* porque, nesta verso do Hibernate, a
+ * insero com coluna identity dispara o evento j no flush, mesmo que a
+ * transao seja desfeita depois. Em vez disso ouvimos os eventos comuns e
+ * adiamos a publicao para depois do commit.
+ */
+class OuvinteDeAlteracoes implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+	private static final long serialVersionUID = 1L;
+
+	private final FluxoDeAlteracoes fluxo;
+
+	OuvinteDeAlteracoes(FluxoDeAlteracoes fluxo) {
+		this.fluxo = fluxo;
+	}
+
+	public void onPostInsert(PostInsertEvent evento) {
+		publicaAposCommit(evento.getSession(), TipoDeAlteracao.INSERCAO, evento.getPersister(), evento.getId());
+	}
+
+	public void onPostUpdate(PostUpdateEvent evento) {
+		publicaAposCommit(evento.getSession(), TipoDeAlteracao.ATUALIZACAO, evento.getPersister(), evento.getId());
+	}
+
+	public void onPostDelete(PostDeleteEvent evento) {
+		publicaAposCommit(evento.getSession(), TipoDeAlteracao.REMOCAO, evento.getPersister(), evento.getId());
+	}
+
+	private void publicaAposCommit(Session session, final TipoDeAlteracao tipo, EntityPersister persister,
+			Serializable id) {
+		final String entidade = nomeSimples(persister.getEntityName());
+		final Integer idDaEntidade = (Integer) id;
+
+		AposCommit.executa(session, new Runnable() {
+			public void run() {
+				fluxo.publica(tipo, entidade, idDaEntidade);
+			}
+		});
+	}
+
+	/*
+	 * O fluxo do ouvinte registrado na fbrica desta sesso, ou null se a
+	 * fbrica no publica alteraes. Os DAOs usam o mesmo fluxo nas
+	 * operaes em lote, que no passam pelos eventos do Hibernate.
+	 */
+	static FluxoDeAlteracoes fluxoDa(Session session) {
+		EventListenerRegistry registro = ((SessionFactoryImplementor) session.getSessionFactory())
+				.getServiceRegistry().getService(EventListenerRegistry.class);
+		for (PostInsertEventListener ouvinte : registro.getEventListenerGroup(EventType.POST_INSERT).listeners()) {
+			if (ouvinte instanceof OuvinteDeAlteracoes) {
+				return ((OuvinteDeAlteracoes) ouvinte).fluxo;
+			}
+		}
+		return null;
+	}
+
+	static String nomeSimples(String nomeDaEntidade) {
+		return nomeDaEntidade.substring(nomeDaEntidade.lastIndexOf('.') + 1);
+	}
+}
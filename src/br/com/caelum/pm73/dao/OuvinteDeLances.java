@@ -0,0 +1,59 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Calendar;
+
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.jdbc.Work;
+
+import br.com.caelum.pm73.dominio.Lance;
+
+/**
+ * Mantm a tabela de participaes a cada lance inserido pelo Hibernate, venha
+ * ele do LeilaoDao, do merge de um leilo com lances novos ou dos shards.
+ * Registrado em toda fbrica criada por {@link CriadorDeSessao#criaConfig}.
+ *
+ * O MERGE vai pela mesma conexo, sem esperar o lote de INSERTs do flush: a
+ * participao no tem chaves estrangeiras.
+ */
+class OuvinteDeLances implements PostInsertEventListener {
+
+	private static final long serialVersionUID = 1L;
+
+	/*
+	 * Um nico comando, atmico no banco, mesmo com dois lances do mesmo
+	 * usurio no mesmo leilo ao mesmo tempo.
+	 */
+	private static final String REGISTRA_PARTICIPACAO = "MERGE INTO PARTICIPACAO P USING (VALUES (CAST(? AS INTEGER), "
+			+ "CAST(? AS INTEGER), CAST(? AS TIMESTAMP))) AS N (USUARIO_ID, LEILAO_ID, ULTIMOLANCE) "
+			+ "ON P.USUARIO_ID = N.USUARIO_ID AND P.LEILAO_ID = N.LEILAO_ID "
+			+ "WHEN MATCHED THEN UPDATE SET P.ULTIMOLANCE = GREATEST(P.ULTIMOLANCE, N.ULTIMOLANCE) "
+			+ "WHEN NOT MATCHED THEN INSERT (USUARIO_ID, LEILAO_ID, ULTIMOLANCE) "
+			+ "VALUES (N.USUARIO_ID, N.LEILAO_ID, N.ULTIMOLANCE)";
+
+	public void onPostInsert(PostInsertEvent evento) {
+		if (!(evento.getEntity() instanceof Lance)) {
+			return;
+		}
+
+		final Lance lance = (Lance) evento.getEntity();
+		final Calendar data = lance.getData() != null ? lance.getData() : Calendar.getInstance();
+		evento.getSession().doWork(new Work() {
+			public void execute(Connection conexao) throws SQLException {
+				PreparedStatement comando = conexao.prepareStatement(REGISTRA_PARTICIPACAO);
+				try {
+					comando.setInt(1, lance.getUsuario().getId());
+					comando.setInt(2, lance.getLeilao().getId());
+					comando.setTimestamp(3, new Timestamp(data.getTimeInMillis()));
+					comando.executeUpdate();
+				} finally {
+					comando.close();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,156 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.jdbc.Work;
+
+/**
+ * Como o HSQLDB guarda os dados, escolhido na inicializao com
+ * -Dcaelum.armazenamento=&lt;nome&gt; (padro "memory").
+ *
+ * Nas tabelas MEMORY todos os dados ficam no heap e so relidos do .script a
+ * cada abertura; nas CACHED eles ficam no arquivo .data e s um cache de
+ * linhas fica em memria. Ao abrir o banco, o perfil converte as tabelas que
+ * estiverem com o outro tipo, ento trocar de perfil j migra os dados
+ * existentes, nos dois sentidos.
+ */
+public enum PerfilDeArmazenamento {
+
+	/**
+	 * O comportamento de sempre: caelum.db com tabelas MEMORY e as
+	 * configuraes de arquivo padro do HSQLDB. Elas so aplicadas
+	 * explicitamente porque o banco guarda as do ltimo perfil usado, e as
+	 * tabelas novas do hbm2ddl voltariam a ser CACHED.
+	 */
+	MEMORIA("memory", "jdbc:hsqldb:caelum.db;shutdown=true", "MEMORY",
+			"SET FILES CACHE ROWS 50000",
+			"SET FILES CACHE SIZE 10000",
+			"SET FILES NIO SIZE 256",
+			"SET FILES LOG SIZE 50",
+			"SET FILES WRITE DELAY 500 MILLIS",
+			"SET DATABASE DEFAULT TABLE TYPE MEMORY"),
+
+	/**
+	 * caelum.db com tabelas CACHED: heap limitado pelo cache de linhas (100 mil
+	 * linhas ou 32 MB), arquivo .data mapeado por NIO at 512 MB e um log curto,
+	 * que  o que o banco rel ao abrir. A escrita do log em disco  adiada em
+	 * at 200 ms.
+	 */
+	DISCO_COM_CACHE("cached-disk", "jdbc:hsqldb:caelum.db;shutdown=true", "CACHED",
+			"SET FILES CACHE ROWS 100000",
+			"SET FILES CACHE SIZE 32768",
+			"SET FILES NIO SIZE 512",
+			"SET FILES LOG SIZE 20",
+			"SET FILES WRITE DELAY 200 MILLIS",
+			"SET DATABASE DEFAULT TABLE TYPE CACHED"),
+
+	/**
+	 * Um banco s em memria, criado vazio pelo Hibernate a cada JVM; nada vai
+	 * para o disco.
+	 */
+	TESTE_EM_MEMORIA("in-memory-test", "jdbc:hsqldb:mem:caelum-teste", null) {
+		@Override
+		public void configura(Configuration config) {
+			config.setProperty("hibernate.hbm2ddl.auto", "create");
+		}
+	};
+
+	private final String nome;
+	private final String url;
+	private final String tipoDasTabelas;
+	private final String[] ajustes;
+
+	private PerfilDeArmazenamento(String nome, String url, String tipoDasTabelas, String... ajustes) {
+		this.nome = nome;
+		this.url = url;
+		this.tipoDasTabelas = tipoDasTabelas;
+		this.ajustes = ajustes;
+	}
+
+	public static PerfilDeArmazenamento porNome(String nome) {
+		for (PerfilDeArmazenamento perfil : values()) {
+			if (perfil.nome.equals(nome)) {
+				return perfil;
+			}
+		}
+		throw new IllegalArgumentException("Perfil de armazenamento desconhecido: " + nome);
+	}
+
+	public static PerfilDeArmazenamento doSistema() {
+		return porNome(System.getProperty("caelum.armazenamento", MEMORIA.nome));
+	}
+
+	public String getNome() {
+		return nome;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void configura(Configuration config) {
+	}
+
+	/**
+	 * Aplica as configuraes de arquivo do perfil e converte para o tipo do
+	 * perfil as tabelas que estiverem com outro. Depois de uma converso, um
+	 * CHECKPOINT regrava o .script j sem os dados das tabelas CACHED.
+	 */
+	public void prepara(SessionFactory fabrica) {
+		if (tipoDasTabelas == null) {
+			return;
+		}
+
+		Session session = fabrica.openSession();
+		try {
+			session.beginTransaction();
+			session.doWork(new Work() {
+				public void execute(Connection conexao) throws SQLException {
+					Statement comando = conexao.createStatement();
+					try {
+						for (String ajuste : ajustes) {
+							comando.execute(ajuste);
+						}
+
+						List<String> aConverter = tabelasComOutroTipo(comando);
+						for (String tabela : aConverter) {
+							comando.execute("SET TABLE PUBLIC." + tabela + " TYPE " + tipoDasTabelas);
+						}
+						if (!aConverter.isEmpty()) {
+							comando.execute("CHECKPOINT");
+						}
+					} finally {
+						comando.close();
+					}
+				}
+			});
+			session.getTransaction().commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	private List<String> tabelasComOutroTipo(Statement comando) throws SQLException {
+		List<String> tabelas = new ArrayList<String>();
+		ResultSet resultado = comando.executeQuery("SELECT TABLE_NAME, HSQLDB_TYPE FROM "
+				+ "INFORMATION_SCHEMA.SYSTEM_TABLES WHERE TABLE_SCHEM = 'PUBLIC' AND TABLE_TYPE = 'TABLE'");
+		try {
+			while (resultado.next()) {
+				if (!tipoDasTabelas.equals(resultado.getString(2))) {
+					tabelas.add(resultado.getString(1));
+				}
+			}
+		} finally {
+			resultado.close();
+		}
+		return tabelas;
+	}
+}
@@ -0,0 +1,169 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import br.com.caelum.pm73.dominio.Lance;
+
+/**
+ * Os N maiores lances de cada leilo aberto e, a partir deles, os leiles que
+ * cada usurio est vencendo.
+ *
+ * Cada leilo guarda s um pdio de tamanho fixo, ordenado; um lance novo
+ * custa no mximo N comparaes, no importa quantos lances o leilo j tenha.
+ * O ranking  atualizado pelo {@link LeilaoDao} depois do commit de cada lance
+ * e pode ser aquecido com {@link LeilaoDao#maioresLances}.
+ *
+ * Os ids dos leiles removidos ficam guardados: um registra atrasado, de um
+ * commit que terminou depois do encerramento, no recria o pdio.
+ */
+public class RankingDeLances {
+
+	private final int tamanho;
+	private final ConcurrentMap<Integer, Podio> porLeilao = new ConcurrentHashMap<Integer, Podio>();
+	private final ConcurrentMap<Integer, Set<Integer>> vencendoPorUsuario = new ConcurrentHashMap<Integer, Set<Integer>>();
+	private final Set<Integer> removidos = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	public RankingDeLances(int tamanho) {
+		if (tamanho <= 0) {
+			throw new IllegalArgumentException("O ranking precisa de pelo menos uma posio");
+		}
+		this.tamanho = tamanho;
+	}
+
+	public void registra(Lance lance) {
+		registra(lance.getLeilao().getId(), new LanceNoRanking(lance.getId(), lance.getUsuario().getId(),
+				lance.getValor(), lance.getData() == null ? 0 : lance.getData().getTimeInMillis()));
+	}
+
+	public void registra(int leilaoId, LanceNoRanking lance) {
+		if (removidos.contains(leilaoId)) {
+			return;
+		}
+		Podio podio = porLeilao.get(leilaoId);
+		if (podio == null) {
+			Podio novo = new Podio(leilaoId);
+			podio = porLeilao.putIfAbsent(leilaoId, novo);
+			if (podio == null) {
+				podio = novo;
+			}
+		}
+		podio.adiciona(lance);
+
+		// o leilo foi removido enquanto o pdio era criado
+		if (removidos.contains(leilaoId)) {
+			remove(leilaoId);
+		}
+	}
+
+	/**
+	 * Os maiores lances do leilo, do maior para o menor.
+	 */
+	public List<LanceNoRanking> maiores(int leilaoId) {
+		Podio podio = porLeilao.get(leilaoId);
+		return podio == null ? Collections.<LanceNoRanking> emptyList() : podio.copia();
+	}
+
+	public LanceNoRanking vencedor(int leilaoId) {
+		Podio podio = porLeilao.get(leilaoId);
+		return podio == null ? null : podio.primeiro();
+	}
+
+	public Set<Integer> leiloesVencidosPor(int usuarioId) {
+		Set<Integer> leiloes = vencendoPorUsuario.get(usuarioId);
+		return leiloes == null ? Collections.<Integer> emptySet() : new HashSet<Integer>(leiloes);
+	}
+
+	/**
+	 * Tira o leilo do ranking, quando ele  encerrado ou apagado.
+	 */
+	public void remove(int leilaoId) {
+		removidos.add(leilaoId);
+		Podio podio = porLeilao.remove(leilaoId);
+		if (podio != null) {
+			podio.descarta();
+		}
+	}
+
+	private void passaALiderancaDe(Integer anterior, int novo, int leilaoId) {
+		if (anterior != null) {
+			Set<Integer> leiloes = vencendoPorUsuario.get(anterior);
+			if (leiloes != null) {
+				leiloes.remove(leilaoId);
+			}
+		}
+		Set<Integer> leiloes = vencendoPorUsuario.get(novo);
+		if (leiloes == null) {
+			Set<Integer> novos = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+			leiloes = vencendoPorUsuario.putIfAbsent(novo, novos);
+			if (leiloes == null) {
+				leiloes = novos;
+			}
+		}
+		leiloes.add(leilaoId);
+	}
+
+	private class Podio {
+		private final int leilaoId;
+		private final LanceNoRanking[] lances = new LanceNoRanking[tamanho];
+		private int ocupados;
+		private boolean descartado;
+
+		Podio(int leilaoId) {
+			this.leilaoId = leilaoId;
+		}
+
+		synchronized void adiciona(LanceNoRanking lance) {
+			if (descartado) {
+				return;
+			}
+			for (int i = 0; i < ocupados; i++) {
+				if (lances[i].getLanceId() == lance.getLanceId()) {
+					return;
+				}
+			}
+
+			int posicao = ocupados;
+			while (posicao > 0 && lance.estaAFrenteDe(lances[posicao - 1])) {
+				posicao--;
+			}
+			if (posicao == tamanho) {
+				return;
+			}
+
+			Integer liderAnterior = ocupados == 0 ? null : lances[0].getUsuarioId();
+			int aDeslocar = Math.min(ocupados, tamanho - 1) - posicao;
+			System.arraycopy(lances, posicao, lances, posicao + 1, aDeslocar);
+			lances[posicao] = lance;
+			ocupados = Math.min(ocupados + 1, tamanho);
+
+			if (posicao == 0 && (liderAnterior == null || liderAnterior != lance.getUsuarioId())) {
+				passaALiderancaDe(liderAnterior, lance.getUsuarioId(), leilaoId);
+			}
+		}
+
+		synchronized List<LanceNoRanking> copia() {
+			return new ArrayList<LanceNoRanking>(Arrays.asList(lances).subList(0, ocupados));
+		}
+
+		synchronized LanceNoRanking primeiro() {
+			return ocupados == 0 ? null : lances[0];
+		}
+
+		synchronized void descarta() {
+			descartado = true;
+			if (ocupados > 0) {
+				Set<Integer> leiloes = vencendoPorUsuario.get(lances[0].getUsuarioId());
+				if (leiloes != null) {
+					leiloes.remove(leilaoId);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package br.com.caelum.pm73.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+
+/**
+ * Deixa as sequncias dos {@link GeradorDeIdsEmBlocos} prontas para uso num
+ * banco que j existia: cria as que faltam, com o tamanho do bloco como
+ * incremento, e garante que o prximo valor fique acima do maior id da tabela.
+ *
+ * O incremento de uma sequncia que j existe nunca  trocado: outra JVM pode
+ * estar usando a sequncia com o bloco dela, e um incremento menor que o bloco
+ * faria as duas entregarem os mesmos ids. Se o incremento do banco no for um
+ * mltiplo do bloco desta JVM, a inicializao falha; um mltiplo (os shards
+ * usam N * B) s deixa ids sem uso entre os blocos.
+ *
+ *  o caminho de migrao dos bancos criados com @GeneratedValue simples. As
+ * colunas de id desses bancos continuam com a identity (GENERATED BY DEFAULT
+ * aceita o id vindo do Hibernate): o HSQLDB 2.2.9 no consegue mais gravar o
+ * .script depois de um DROP GENERATED.
+ */
+class SequenciasDeIds {
+
+	private SequenciasDeIds() {
+	}
+
+	static void alinha(SessionFactory fabrica) {
+		final SessionFactoryImplementor implementor = (SessionFactoryImplementor) fabrica;
+		Session session = fabrica.openSession();
+		try {
+			session.beginTransaction();
+			session.doWork(new Work() {
+				public void execute(Connection conexao) throws SQLException {
+					for (String entidade : implementor.getAllClassMetadata().keySet()) {
+						EntityPersister persister = implementor.getEntityPersister(entidade);
+						if (persister.getIdentifierGenerator() instanceof GeradorDeIdsEmBlocos) {
+							alinha(conexao, (AbstractEntityPersister) persister,
+									(GeradorDeIdsEmBlocos) persister.getIdentifierGenerator());
+						}
+					}
+				}
+			});
+			session.getTransaction().commit();
+		} finally {
+			session.close();
+		}
+	}
+
+	static GeradorDeIdsEmBlocos gerador(SessionFactory fabrica, Class<?> entidade) {
+		IdentifierGenerator gerador = ((SessionFactoryImplementor) fabrica).getIdentifierGenerator(entidade.getName());
+		if (!(gerador instanceof GeradorDeIdsEmBlocos)) {
+			throw new IllegalStateException(entidade.getSimpleName() + " no usa ids em blocos");
+		}
+		return (GeradorDeIdsEmBlocos) gerador;
+	}
+
+	private static void alinha(Connection conexao, AbstractEntityPersister persister, GeradorDeIdsEmBlocos gerador)
+			throws SQLException {
+		String tabela = persister.getTableName().toUpperCase();
+		String coluna = persister.getIdentifierColumnNames()[0].toUpperCase();
+		String sequencia = gerador.getDatabaseStructure().getName().toUpperCase();
+		int bloco = gerador.getTamanhoDoBloco();
+
+		Statement comando = conexao.createStatement();
+		try {
+			long maior = valor(comando, "SELECT COALESCE(MAX(" + coluna + "), 0) FROM " + tabela);
+			PreparedStatement consulta = conexao.prepareStatement("SELECT NEXT_VALUE, INCREMENT FROM "
+					+ "INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_SCHEMA = 'PUBLIC' AND SEQUENCE_NAME = ?");
+			try {
+				consulta.setString(1, sequencia);
+				ResultSet resultado = consulta.executeQuery();
+				if (!resultado.next()) {
+					comando.execute("CREATE SEQUENCE " + sequencia + " AS INTEGER START WITH " + (maior + 1)
+							+ " INCREMENT BY " + bloco);
+				} else {
+					if (resultado.getLong(1) <= maior) {
+						comando.execute("ALTER SEQUENCE " + sequencia + " RESTART WITH " + (maior + 1));
+					}
+					long incremento = resultado.getLong(2);
+					if (incremento % bloco != 0) {
+						throw new IllegalStateException("A sequncia " + sequencia + " anda de " + incremento
+								+ " em " + incremento + ", o que no  mltiplo do bloco de " + bloco + " ids de "
+								+ persister.getEntityName() + " desta JVM; ajuste -Dcaelum.ids ou a sequncia");
+					}
+				}
+				resultado.close();
+			} finally {
+				consulta.close();
+			}
+		} finally {
+			comando.close();
+		}
+	}
+
+	private static long valor(Statement comando, String sql) throws SQLException {
+		ResultSet resultado = comando.executeQuery(sql);
+		try {
+			resultado.next();
+			return resultado.getLong(1);
+		} finally {
+			resultado.close();
+		}
+	}
+}
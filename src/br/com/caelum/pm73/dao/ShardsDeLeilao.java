@@ -0,0 +1,231 @@
+package br.com.caelum.pm73.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Vrios bancos HSQLDB ("shards") dividindo os leiles entre si.
+ *
+ * Cada leilo, com os seus lances, mora num nico shard, escolhido pelo id.
+ * Os ids de leilo saem em blocos de B (ver {@link GeradorDeIdsEmBlocos}); o
+ * shard i (contando do zero) s entrega os blocos de nmero i, i + N, i + 2N...
+ * porque a sua sequncia LEILAO_SEQ anda de N * B em N * B. Assim o shard de
+ * um leilo  sempre ((id - 1) / B) % N. Os
+ * usurios so replicados em todos os shards com o mesmo id, para que leiles
+ * e lances de qualquer shard possam referenci-los.
+ *
+ * No h transao distribuda: cada operao  commitada shard a shard.
+ *
+ * As threads que consultam os shards em paralelo so daemon, para no
+ * segurarem a JVM de quem esqueceu de chamar {@link #fecha()}.
+ */
+@SuppressWarnings("deprecation")
+public class ShardsDeLeilao {
+
+	/**
+	 * Um trabalho executado numa sesso de um shard, dentro de uma transao.
+	 */
+	public interface TrabalhoNoShard<T> {
+		T executa(Session session);
+	}
+
+	private final List<SessionFactory> fabricas = new ArrayList<SessionFactory>();
+	private final ExecutorService executor;
+	private final int tamanhoDoBloco;
+
+	public ShardsDeLeilao(CriadorDeSessao criadorDeSessao, List<String> urls) {
+		if (urls.isEmpty()) {
+			throw new IllegalArgumentException(" preciso pelo menos um shard");
+		}
+		for (int shard = 0; shard < urls.size(); shard++) {
+			SessionFactory fabrica = criadorDeSessao.criaConfig(urls.get(shard))
+					.setProperty("hibernate.hbm2ddl.auto", "update").buildSessionFactory();
+			CriadorDeSessao.registraOuvinteDeAlteracoes(fabrica);
+			SequenciasDeIds.alinha(fabrica);
+			fabricas.add(fabrica);
+		}
+		this.tamanhoDoBloco = SequenciasDeIds.gerador(fabricas.get(0), Leilao.class).getTamanhoDoBloco();
+		for (int shard = 0; shard < urls.size(); shard++) {
+			preparaIdsDosLeiloes(shard, urls.size());
+		}
+		this.executor = Executors.newFixedThreadPool(urls.size(), new ThreadFactory() {
+			private final AtomicInteger criadas = new AtomicInteger();
+
+			public Thread newThread(Runnable tarefa) {
+				Thread thread = new Thread(tarefa, "shards-de-leilao-" + criadas.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public int getQuantidade() {
+		return fabricas.size();
+	}
+
+	public int shardDoLeilao(int leilaoId) {
+		return ((leilaoId - 1) / tamanhoDoBloco) % fabricas.size();
+	}
+
+	/*
+	 * Faz a LEILAO_SEQ deste shard comear no primeiro bloco dele acima dos ids
+	 * que j existem e pular os blocos dos outros shards. Uma sequncia que j
+	 * est assim no  mexida, porque outra JVM pode estar reservando blocos
+	 * dela; uma que anda com outro passo que no o do bloco (a recm-criada)
+	 *  de outra diviso dos shards, e a inicializao falha.
+	 */
+	private void preparaIdsDosLeiloes(final int shard, final int quantidade) {
+		noShard(shard, new TrabalhoNoShard<Void>() {
+			public Void executa(Session session) {
+				long maior = ((Number) session.createSQLQuery("SELECT COALESCE(MAX(ID), 0) FROM LEILAO")
+						.uniqueResult()).longValue();
+				Object[] sequencia = (Object[]) session.createSQLQuery("SELECT NEXT_VALUE, INCREMENT FROM "
+						+ "INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_SCHEMA = 'PUBLIC' AND SEQUENCE_NAME = 'LEILAO_SEQ'")
+						.uniqueResult();
+				long proximo = Long.parseLong(sequencia[0].toString());
+				long incremento = Long.parseLong(sequencia[1].toString());
+				long passo = quantidade * tamanhoDoBloco;
+
+				if (incremento != passo && incremento != tamanhoDoBloco) {
+					throw new IllegalStateException("A LEILAO_SEQ do shard " + shard + " anda de " + incremento
+							+ " em " + incremento + ", mas " + quantidade + " shards com blocos de " + tamanhoDoBloco
+							+ " precisam de " + passo);
+				}
+				boolean noBlocoDoShard = (proximo - 1) % tamanhoDoBloco == 0
+						&& ((proximo - 1) / tamanhoDoBloco) % quantidade == shard;
+				if (incremento == passo && proximo > maior && noBlocoDoShard) {
+					return null;
+				}
+
+				long bloco = (maior + tamanhoDoBloco - 1) / tamanhoDoBloco;
+				while (bloco % quantidade != shard) {
+					bloco++;
+				}
+				session.createSQLQuery("ALTER SEQUENCE LEILAO_SEQ RESTART WITH " + (bloco * tamanhoDoBloco + 1))
+						.executeUpdate();
+				if (incremento != passo) {
+					session.createSQLQuery("ALTER SEQUENCE LEILAO_SEQ INCREMENT BY " + passo).executeUpdate();
+				}
+				return null;
+			}
+		});
+	}
+
+	public <T> T noShard(int shard, TrabalhoNoShard<T> trabalho) {
+		Session session = fabricas.get(shard).openSession();
+		try {
+			session.beginTransaction();
+			T resultado = trabalho.executa(session);
+			session.getTransaction().commit();
+			return resultado;
+		} catch (RuntimeException e) {
+			if (session.getTransaction().isActive()) {
+				session.getTransaction().rollback();
+			}
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Executa o trabalho em todos os shards em paralelo e devolve os resultados
+	 * na ordem dos shards.
+	 */
+	public <T> List<T> emTodos(final TrabalhoNoShard<T> trabalho) {
+		List<Future<T>> futuros = new ArrayList<Future<T>>();
+		for (int shard = 0; shard < fabricas.size(); shard++) {
+			final int esteShard = shard;
+			futuros.add(executor.submit(new Callable<T>() {
+				public T call() {
+					return noShard(esteShard, trabalho);
+				}
+			}));
+		}
+
+		List<T> resultados = new ArrayList<T>();
+		for (Future<T> futuro : futuros) {
+			try {
+				resultados.add(futuro.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrompido esperando os shards", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return resultados;
+	}
+
+	/**
+	 * Salva o usurio no primeiro shard, que gera o id, e copia ele com o mesmo
+	 * id para os demais.
+	 */
+	public void salvaUsuario(final Usuario usuario) {
+		noShard(0, new TrabalhoNoShard<Void>() {
+			public Void executa(Session session) {
+				session.save(usuario);
+				return null;
+			}
+		});
+
+		for (int shard = 1; shard < fabricas.size(); shard++) {
+			noShard(shard, new TrabalhoNoShard<Void>() {
+				public Void executa(Session session) {
+					session.createSQLQuery("INSERT INTO USUARIO (ID, NOME, EMAIL) VALUES (?, ?, ?)")
+							.setInteger(0, usuario.getId()).setString(1, usuario.getNome())
+							.setString(2, usuario.getEmail()).executeUpdate();
+					return null;
+				}
+			});
+		}
+	}
+
+	public void atualizaUsuario(final Usuario usuario) {
+		emTodos(new TrabalhoNoShard<Void>() {
+			public Void executa(Session session) {
+				session.merge(usuario);
+				return null;
+			}
+		});
+	}
+
+	/*
+	 * As participaes no tm chave estrangeira para o usurio; saem junto
+	 * com ele, como no UsuarioDao.
+	 */
+	public void deletaUsuario(final Usuario usuario) {
+		emTodos(new TrabalhoNoShard<Void>() {
+			public Void executa(Session session) {
+				session.createQuery("delete from Participacao p where p.chave.usuarioId = :id")
+						.setParameter("id", usuario.getId()).executeUpdate();
+				session.createQuery("DELETE FROM Usuario u WHERE u.id = :id").setParameter("id", usuario.getId())
+						.executeUpdate();
+				return null;
+			}
+		});
+	}
+
+	public void fecha() {
+		executor.shutdown();
+		for (SessionFactory fabrica : fabricas) {
+			fabrica.close();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package br.com.caelum.pm73.dao;
+
+/**
+ * Parcial de uma mdia: somas e quantidades de vrios shards podem ser
+ * combinadas, ao contrrio das mdias de cada um.
+ */
+public class SomaEQuantidade {
+
+	private final double soma;
+	private final long quantidade;
+
+	public SomaEQuantidade(double soma, long quantidade) {
+		this.soma = soma;
+		this.quantidade = quantidade;
+	}
+
+	public SomaEQuantidade mais(SomaEQuantidade outra) {
+		return new SomaEQuantidade(soma + outra.soma, quantidade + outra.quantidade);
+	}
+
+	public double getSoma() {
+		return soma;
+	}
+
+	public long getQuantidade() {
+		return quantidade;
+	}
+
+	/**
+	 * @return a mdia, ou NaN se no houver nenhum valor
+	 */
+	public double getMedia() {
+		return quantidade == 0 ? Double.NaN : soma / quantidade;
+	}
+}
@@ -0,0 +1,11 @@
+package br.com.caelum.pm73.dao;
+
+public enum TipoDeAlteracao {
+	INSERCAO, ATUALIZACAO, REMOCAO,
+
+	/**
+	 * Remoo feita por uma nica instruo, como em
+	 * {@link LeilaoDao#deletaEncerrados()}; o evento no tem id.
+	 */
+	REMOCAO_EM_LOTE
+}
@@ -1,37 +1,166 @@
 package br.com.caelum.pm73.dao;
 
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
 import org.hibernate.Session;
 
 import br.com.caelum.pm73.dominio.Usuario;
 
 public class UsuarioDao {
 
+	private static final CacheDeUsuarios CACHE_COMPARTILHADO = new CacheDeUsuarios(10000,
+			TimeUnit.MINUTES.toMillis(10), TimeUnit.SECONDS.toMillis(5), TimeUnit.MILLISECONDS);
+
 	private final Session session;
+	private CacheDeUsuarios cache = CACHE_COMPARTILHADO;
+	private boolean somenteLeitura;
 
 	public UsuarioDao(Session session) {
 		this.session = session;
 	}
+
+	/*
+	 * Por padro todos os DAOs dividem o mesmo cache de nome e email; testes e
+	 * ferramentas podem troc-lo por um prprio.
+	 */
+	public UsuarioDao comCache(CacheDeUsuarios cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	/*
+	 * Como em LeilaoDao.somenteLeitura: usurios carregados sem cpia para o
+	 * dirty checking e consultas sem flush. A conexo no  marcada como
+	 * somente leitura; isso s acontece nas sesses de
+	 * CriadorDeSessao.getSessionSomenteLeitura().
+	 */
+	public UsuarioDao somenteLeitura() {
+		this.somenteLeitura = true;
+		return this;
+	}
+
+	public static CacheDeUsuarios getCacheCompartilhado() {
+		return CACHE_COMPARTILHADO;
+	}
 	
 	public Usuario porId(int id) {
-		return (Usuario) session.load(Usuario.class, id);
+		Usuario usuario = (Usuario) session.load(Usuario.class, id);
+		if (somenteLeitura) {
+			session.setReadOnly(usuario, true);
+		}
+		return usuario;
 	}
 	
 	public Usuario porNomeEEmail(String nome, String email) {
-		return (Usuario) session.createQuery("FROM Usuario u WHERE u.nome = :nome AND u.email = :email")
+		Integer id = cache.idDe(nome, email);
+		if (id != null) {
+			if (id == CacheDeUsuarios.INEXISTENTE) {
+				return null;
+			}
+
+			// o id pode ter ficado velho (usurio alterado por fora, transao desfeita)
+			Usuario usuario = (Usuario) session.get(Usuario.class, id);
+			if (usuario != null && somenteLeitura) {
+				session.setReadOnly(usuario, true);
+			}
+			if (usuario != null && iguais(nome, usuario.getNome()) && iguais(email, usuario.getEmail())) {
+				return usuario;
+			}
+			cache.invalida(nome, email);
+		}
+
+		Query query = session.createQuery("FROM Usuario u WHERE u.nome = :nome AND u.email = :email");
+		if (somenteLeitura) {
+			query.setReadOnly(true).setFlushMode(FlushMode.MANUAL);
+		}
+		Usuario usuario = (Usuario) query
 				.setParameter("nome", nome)
 				.setParameter("email", email)
 				.uniqueResult();
+
+		if (usuario == null) {
+			cache.guardaInexistente(nome, email);
+		} else {
+			cache.guarda(nome, email, usuario.getId());
+		}
+		return usuario;
 	}
 	
 	public void salvar(Usuario usuario) {
 		session.save(usuario);
+		invalidaAgoraEAposCommit(usuario);
 	}
 	
 	public void atualizar(Usuario usuario) {
 		session.merge(usuario);
+		invalidaAgoraEAposCommit(usuario);
 	}
 	
 	public void deletar(Usuario usuario) {
+		session.createQuery("delete from Participacao p where p.chave.usuarioId = :usuario")
+				.setParameter("usuario", usuario.getId()).executeUpdate();
 		session.delete(usuario);
+		invalidaAgoraEAposCommit(usuario);
+	}
+
+	/*
+	 * Troca o nome com um nico UPDATE, sem o merge. S o email  lido do banco,
+	 * para limpar do cache uma eventual entrada negativa do nome novo. Devolve
+	 * false se o usurio no existe.
+	 */
+	public boolean renomeia(final int id, String nome) {
+		String email = (String) session.createQuery("SELECT u.email FROM Usuario u WHERE u.id = :id")
+				.setParameter("id", id).uniqueResult();
+		int alterados = session.createQuery("UPDATE Usuario SET nome = :nome WHERE id = :id")
+				.setParameter("nome", nome).setParameter("id", id).executeUpdate();
+		if (alterados == 0) {
+			return false;
+		}
+
+		Usuario carregado = NaSessao.carregada(session, Usuario.class, id);
+		if (carregado != null) {
+			carregado.setNome(nome);
+		}
+
+		invalidaAgoraEAposCommit(id, nome, email);
+
+		// o UPDATE em HQL no passa pelos eventos do Hibernate
+		final FluxoDeAlteracoes fluxo = OuvinteDeAlteracoes.fluxoDa(session);
+		if (fluxo != null) {
+			AposCommit.executa(session, new Runnable() {
+				public void run() {
+					fluxo.publica(TipoDeAlteracao.ATUALIZACAO, "Usuario", id);
+				}
+			});
+		}
+		return true;
+	}
+
+	/*
+	 * Invalidamos na hora, para esta sesso enxergar a mudana, e de novo depois
+	 * do commit, porque outra sesso pode ter guardado a verso antiga (ou a
+	 * ausncia do usurio) enquanto a transao estava aberta.
+	 */
+	private void invalidaAgoraEAposCommit(Usuario usuario) {
+		invalidaAgoraEAposCommit(usuario.getId(), usuario.getNome(), usuario.getEmail());
+	}
+
+	private void invalidaAgoraEAposCommit(final int id, final String nome, final String email) {
+		final CacheDeUsuarios cache = this.cache;
+
+		Runnable invalidacao = new Runnable() {
+			public void run() {
+				cache.invalidaId(id);
+				cache.invalida(nome, email);
+			}
+		};
+		invalidacao.run();
+		AposCommit.executa(session, invalidacao);
+	}
+
+	private static boolean iguais(String a, String b) {
+		return a == null ? b == null : a.equals(b);
 	}
 }
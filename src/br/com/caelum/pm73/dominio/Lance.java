@@ -2,15 +2,29 @@ package br.com.caelum.pm73.dominio;
 
 import java.util.Calendar;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.annotations.Table;
 
 @Entity
+// a chave vem primeiro no ndice da restrio, que tambm serve s buscas s pela chave
+@javax.persistence.Table(uniqueConstraints = @UniqueConstraint(name = "lance_chave_usuario_uk", columnNames = {
+		"chaveDeIdempotencia", "usuario_id" }))
+@Table(appliesTo = "Lance", indexes = @Index(name = "lance_leilao_valor_idx", columnNames = { "leilao_id", "valor" }))
 public class Lance {
 
-	@Id @GeneratedValue
+	@Id
+	@GeneratedValue(generator = "lance_ids")
+	@GenericGenerator(name = "lance_ids", strategy = "br.com.caelum.pm73.dao.GeradorDeIdsEmBlocos", parameters = {
+			@Parameter(name = "sequence_name", value = "LANCE_SEQ"), @Parameter(name = "increment_size", value = "100") })
 	private int id;
 	private double valor;
 	private Calendar data;
@@ -18,6 +32,9 @@ public class Lance {
 	private Usuario usuario;
 	@ManyToOne
 	private Leilao leilao;
+	// enviada pelo cliente para que a repetio do mesmo lance no vire outro lance; nica por usurio
+	@Column(length = 64)
+	private String chaveDeIdempotencia;
 	
 	protected Lance() {}
 	public Lance(Calendar data, Usuario usuario, double valor, Leilao leilao) {
@@ -54,6 +71,12 @@ public class Lance {
 	public int getId() {
 		return id;
 	}
+	public String getChaveDeIdempotencia() {
+		return chaveDeIdempotencia;
+	}
+	public void setChaveDeIdempotencia(String chaveDeIdempotencia) {
+		this.chaveDeIdempotencia = chaveDeIdempotencia;
+	}
 	
 	
 }
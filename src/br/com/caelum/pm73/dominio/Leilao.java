@@ -11,10 +11,20 @@ import javax.persistence.Id;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.annotations.Table;
+
 @Entity
+@Table(appliesTo = "Leilao", indexes = @Index(name = "leilao_abertura_idx", columnNames = { "encerrado",
+		"dataAbertura" }))
 public class Leilao {
 
-	@Id @GeneratedValue
+	@Id
+	@GeneratedValue(generator = "leilao_ids")
+	@GenericGenerator(name = "leilao_ids", strategy = "br.com.caelum.pm73.dao.GeradorDeIdsEmBlocos", parameters = {
+			@Parameter(name = "sequence_name", value = "LEILAO_SEQ"), @Parameter(name = "increment_size", value = "50") })
 	private int id;
 	private String nome;
 	private Double valorInicial;
@@ -0,0 +1,87 @@
+package br.com.caelum.pm73.dominio;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+
+import org.hibernate.annotations.Index;
+import org.hibernate.annotations.Synchronize;
+import org.hibernate.annotations.Table;
+
+/**
+ * Registro de que um usurio deu lance num leilo, com a data do seu lance
+ * mais recente: uma linha por par usurio/leilo, por mais lances que ele d.
+ * Mantido a cada lance inserido por um ouvinte do Hibernate, registrado em
+ * toda fbrica do CriadorDeSessao; a remoo de leiles e usurios pelos
+ * DAOs apaga as participaes deles.
+ *
+ * No h chaves estrangeiras para Usuario e Leilao: a linha  gravada no
+ * flush, quando os INSERTs do leilo e do usurio ainda podem estar num
+ * lote pendente. As consultas sobre participaes fazem antes o flush dos
+ * lances pendentes da sesso (@Synchronize).
+ */
+@Entity
+@Synchronize("Lance")
+@Table(appliesTo = "Participacao", indexes = @Index(name = "participacao_usuario_idx", columnNames = {
+		"usuario_id", "ultimoLance" }))
+public class Participacao {
+
+	@Embeddable
+	public static class Chave implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		@Column(name = "usuario_id")
+		private int usuarioId;
+		@Column(name = "leilao_id")
+		private int leilaoId;
+
+		protected Chave() {}
+		public Chave(int usuarioId, int leilaoId) {
+			this.usuarioId = usuarioId;
+			this.leilaoId = leilaoId;
+		}
+
+		public int getUsuarioId() {
+			return usuarioId;
+		}
+		public int getLeilaoId() {
+			return leilaoId;
+		}
+
+		@Override
+		public boolean equals(Object outro) {
+			if (!(outro instanceof Chave)) {
+				return false;
+			}
+			Chave chave = (Chave) outro;
+			return usuarioId == chave.usuarioId && leilaoId == chave.leilaoId;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * usuarioId + leilaoId;
+		}
+	}
+
+	@EmbeddedId
+	private Chave chave;
+	private Calendar ultimoLance;
+
+	protected Participacao() {}
+	public Participacao(Chave chave, Calendar ultimoLance) {
+		this.chave = chave;
+		this.ultimoLance = ultimoLance;
+	}
+
+	public Chave getChave() {
+		return chave;
+	}
+	public Calendar getUltimoLance() {
+		return ultimoLance;
+	}
+}
@@ -4,10 +4,16 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 @Entity
 public class Usuario {
 	
-	@Id @GeneratedValue
+	@Id
+	@GeneratedValue(generator = "usuario_ids")
+	@GenericGenerator(name = "usuario_ids", strategy = "br.com.caelum.pm73.dao.GeradorDeIdsEmBlocos", parameters = {
+			@Parameter(name = "sequence_name", value = "USUARIO_SEQ"), @Parameter(name = "increment_size", value = "20") })
 	private int id;
 	private String nome;
 	private String email;
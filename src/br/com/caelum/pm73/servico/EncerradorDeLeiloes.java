@@ -0,0 +1,155 @@
+package br.com.caelum.pm73.servico;
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+
+/**
+ * Encerra periodicamente os leiles abertos h mais de "diasDeValidade" dias.
+ *
+ * Em vez de carregar cada leilo, chamar encerra() e atualiza() um a um, cada
+ * execuo dispara UPDATEs em lotes de no mximo "tamanhoDoLote" leiles, cada
+ * lote na sua prpria transao, at no sobrar nenhum leilo vencido.
+ *
+ * Entre uma execuo e outra esperamos o intervalo configurado mais um atraso
+ * aleatrio limitado a "jitterMaximo", para que vrias instncias no acordem
+ * todas ao mesmo tempo.
+ */
+public class EncerradorDeLeiloes {
+
+	private final CriadorDeSessao criadorDeSessao;
+	private final int diasDeValidade;
+	private final int tamanhoDoLote;
+	private final long intervaloEmMillis;
+	private final long jitterMaximoEmMillis;
+
+	private final Random aleatorio = new Random();
+	private final List<ObservadorDeEncerramento> observadores = new CopyOnWriteArrayList<ObservadorDeEncerramento>();
+	private final AtomicLong totalDeEncerrados = new AtomicLong();
+	private volatile int encerradosNaUltimaExecucao;
+	private volatile long atrasoDaUltimaExecucaoEmMillis;
+
+	private ScheduledExecutorService agendador;
+
+	public EncerradorDeLeiloes(CriadorDeSessao criadorDeSessao, int diasDeValidade, int tamanhoDoLote,
+			long intervalo, long jitterMaximo, TimeUnit unidade) {
+		if (diasDeValidade < 0 || tamanhoDoLote <= 0 || intervalo <= 0 || jitterMaximo < 0) {
+			throw new IllegalArgumentException("Configurao invlida para o encerrador de leiles");
+		}
+		this.criadorDeSessao = criadorDeSessao;
+		this.diasDeValidade = diasDeValidade;
+		this.tamanhoDoLote = tamanhoDoLote;
+		this.intervaloEmMillis = unidade.toMillis(intervalo);
+		this.jitterMaximoEmMillis = unidade.toMillis(jitterMaximo);
+	}
+
+	public void adicionaObservador(ObservadorDeEncerramento observador) {
+		observadores.add(observador);
+	}
+
+	public synchronized void inicia() {
+		if (agendador != null) {
+			throw new IllegalStateException("O encerrador j foi iniciado");
+		}
+		agendador = Executors.newSingleThreadScheduledExecutor();
+		agendaProximaExecucao();
+	}
+
+	public synchronized void para() {
+		if (agendador != null) {
+			agendador.shutdownNow();
+			agendador = null;
+		}
+	}
+
+	private synchronized void agendaProximaExecucao() {
+		if (agendador == null) {
+			return;
+		}
+		long jitter = jitterMaximoEmMillis == 0 ? 0 : (long) (aleatorio.nextDouble() * (jitterMaximoEmMillis + 1));
+		agendador.schedule(new Runnable() {
+			public void run() {
+				try {
+					executa();
+				} catch (RuntimeException e) {
+					// j repassado aos observadores; seguimos agendando
+				} finally {
+					agendaProximaExecucao();
+				}
+			}
+		}, intervaloEmMillis + jitter, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Roda uma execuo completa, encerrando lote a lote todos os leiles
+	 * vencidos. Pode ser chamado diretamente, sem o agendador.
+	 *
+	 * @return quantos leiles foram encerrados
+	 */
+	public int executa() {
+		Calendar agora = Calendar.getInstance();
+		Calendar limite = (Calendar) agora.clone();
+		limite.add(Calendar.DAY_OF_MONTH, -diasDeValidade);
+
+		Session session = criadorDeSessao.getSession();
+		LeilaoDao dao = new LeilaoDao(session);
+		int encerrados = 0;
+		long atraso = 0;
+
+		try {
+			Calendar maisAntiga = dao.aberturaMaisAntigaNaoEncerradaAntesDe(limite);
+			if (maisAntiga != null) {
+				atraso = limite.getTimeInMillis() - maisAntiga.getTimeInMillis();
+			}
+
+			int encerradosNoLote;
+			do {
+				session.beginTransaction();
+				encerradosNoLote = dao.encerraAbertosAntesDe(limite, tamanhoDoLote);
+				session.getTransaction().commit();
+				encerrados += encerradosNoLote;
+			} while (encerradosNoLote == tamanhoDoLote);
+		} catch (RuntimeException e) {
+			if (session.getTransaction().isActive()) {
+				session.getTransaction().rollback();
+			}
+			totalDeEncerrados.addAndGet(encerrados);
+			for (ObservadorDeEncerramento observador : observadores) {
+				observador.falhou(e);
+			}
+			throw e;
+		} finally {
+			session.close();
+		}
+
+		encerradosNaUltimaExecucao = encerrados;
+		atrasoDaUltimaExecucaoEmMillis = atraso;
+		totalDeEncerrados.addAndGet(encerrados);
+		for (ObservadorDeEncerramento observador : observadores) {
+			observador.encerrou(encerrados, atraso);
+		}
+		return encerrados;
+	}
+
+	public int getEncerradosNaUltimaExecucao() {
+		return encerradosNaUltimaExecucao;
+	}
+
+	public long getAtrasoDaUltimaExecucaoEmMillis() {
+		return atrasoDaUltimaExecucaoEmMillis;
+	}
+
+	public long getTotalDeEncerrados() {
+		return totalDeEncerrados.get();
+	}
+}
@@ -0,0 +1,18 @@
+package br.com.caelum.pm73.servico;
+
+/**
+ * Recebe o resultado de cada execuo do {@link EncerradorDeLeiloes}.
+ */
+public interface ObservadorDeEncerramento {
+
+	/**
+	 * @param encerrados
+	 *            quantos leiles foram encerrados nesta execuo
+	 * @param atrasoEmMillis
+	 *            quanto tempo o leilo vencido mais antigo esperou, alm do
+	 *            prazo, at ser encerrado (zero se no havia leiles vencidos)
+	 */
+	void encerrou(int encerrados, long atrasoEmMillis);
+
+	void falhou(RuntimeException e);
+}
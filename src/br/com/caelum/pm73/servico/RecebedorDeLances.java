@@ -0,0 +1,158 @@
+package br.com.caelum.pm73.servico;
+
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.JDBCException;
+import org.hibernate.Session;
+import org.hibernate.exception.ConstraintViolationException;
+
+import br.com.caelum.pm73.dao.CacheDeIdempotencia;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.IndiceDeLeiloesAbertos;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.RankingDeLances;
+import br.com.caelum.pm73.dominio.Lance;
+import br.com.caelum.pm73.dominio.Leilao;
+import br.com.caelum.pm73.dominio.Usuario;
+
+/**
+ * Recebe os lances dos clientes, que mandam junto uma chave de idempotncia e
+ * repetem o envio quando no recebem resposta. Cada chave vira no mximo um
+ * lance por usurio; as repeties recebem o id do lance original. A mesma
+ * chave usada por outro usurio  outro lance, e uma repetio com leilo ou
+ * valor diferentes do lance gravado  recusada.
+ *
+ * A repetio  respondida pelo {@link CacheDeIdempotencia}, sem sesso nem
+ * transao. Fora da janela do cache, ou quando duas tentativas chegam ao mesmo
+ * tempo, quem decide  a restrio nica de (chave, usurio) do Lance: a
+ * tentativa que perde busca o lance que ganhou.
+ */
+public class RecebedorDeLances {
+
+	private static final int TAMANHO_MAXIMO_DA_CHAVE = 64;
+
+	private final CriadorDeSessao criadorDeSessao;
+	private final CacheDeIdempotencia cache;
+	private final AtomicLong repeticoes = new AtomicLong();
+
+	private RankingDeLances ranking;
+	private IndiceDeLeiloesAbertos indice;
+
+	public RecebedorDeLances(CriadorDeSessao criadorDeSessao, CacheDeIdempotencia cache) {
+		this.criadorDeSessao = criadorDeSessao;
+		this.cache = cache;
+	}
+
+	public RecebedorDeLances comRanking(RankingDeLances ranking) {
+		this.ranking = ranking;
+		return this;
+	}
+
+	public RecebedorDeLances comIndice(IndiceDeLeiloesAbertos indice) {
+		this.indice = indice;
+		return this;
+	}
+
+	/**
+	 * Grava o lance, a no ser que o usurio j tenha um com essa chave.
+	 *
+	 * @return o id do lance gravado com a chave, agora ou numa tentativa
+	 *         anterior
+	 * @throws IllegalArgumentException se a chave j foi usada pelo usurio
+	 *         num lance com outro leilo ou outro valor
+	 */
+	public int recebe(String chave, int leilaoId, int usuarioId, double valor, Calendar data) {
+		if (chave == null || chave.isEmpty() || chave.length() > TAMANHO_MAXIMO_DA_CHAVE) {
+			throw new IllegalArgumentException("Chave de idempotncia invlida: " + chave);
+		}
+
+		// com o contedo do lance na chave do cache, uma repetio diferente vai ao banco e  recusada l
+		String chaveNoCache = usuarioId + ";" + leilaoId + ";" + valor + ";" + chave;
+		Integer doCache = cache.lanceDe(chaveNoCache);
+		if (doCache != null) {
+			repeticoes.incrementAndGet();
+			return doCache;
+		}
+
+		int lanceId;
+		try {
+			lanceId = grava(chave, leilaoId, usuarioId, valor, data);
+		} catch (JDBCException e) {
+			Lance vencedor = violouRestricao(e) ? existente(usuarioId, chave) : null;
+			if (vencedor == null) {
+				throw e;
+			}
+			lanceId = repeticao(vencedor, chave, leilaoId, valor);
+		}
+
+		cache.guarda(chaveNoCache, lanceId);
+		return lanceId;
+	}
+
+	public long getRepeticoes() {
+		return repeticoes.get();
+	}
+
+	private int grava(String chave, int leilaoId, int usuarioId, double valor, Calendar data) {
+		Session session = criadorDeSessao.getSession();
+		try {
+			LeilaoDao dao = new LeilaoDao(session).comRanking(ranking).comIndice(indice);
+			session.beginTransaction();
+
+			Lance anterior = dao.lancePorChave(usuarioId, chave);
+			if (anterior != null) {
+				int lanceId = repeticao(anterior, chave, leilaoId, valor);
+				session.getTransaction().commit();
+				return lanceId;
+			}
+
+			Leilao leilao = (Leilao) session.load(Leilao.class, leilaoId);
+			Usuario usuario = (Usuario) session.load(Usuario.class, usuarioId);
+			Lance lance = new Lance(data, usuario, valor, leilao);
+			lance.setChaveDeIdempotencia(chave);
+			dao.salvaLance(lance);
+
+			session.getTransaction().commit();
+			return lance.getId();
+		} catch (RuntimeException e) {
+			if (session.getTransaction().isActive()) {
+				session.getTransaction().rollback();
+			}
+			throw e;
+		} finally {
+			session.close();
+		}
+	}
+
+	/*
+	 * O INSERT vai num lote JDBC; conforme o driver, a violao da restrio
+	 * nica chega sem ser traduzida para ConstraintViolationException, mas o
+	 * SQLState continua sendo da classe 23.
+	 */
+	private boolean violouRestricao(JDBCException e) {
+		return e instanceof ConstraintViolationException || (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+	}
+
+	private Lance existente(int usuarioId, String chave) {
+		Session session = criadorDeSessao.getSessionSomenteLeitura();
+		try {
+			return new LeilaoDao(session).somenteLeitura().lancePorChave(usuarioId, chave);
+		} finally {
+			session.close();
+		}
+	}
+
+	/*
+	 * Uma repetio s  aceita se pede o mesmo lance que foi gravado com a
+	 * chave.
+	 */
+	private int repeticao(Lance gravado, String chave, int leilaoId, double valor) {
+		if (gravado.getLeilao().getId() != leilaoId || Double.compare(gravado.getValor(), valor) != 0) {
+			throw new IllegalArgumentException("A chave " + chave + " j foi usada pelo usurio no lance "
+					+ gravado.getId() + ", de " + gravado.getValor() + " no leilo " + gravado.getLeilao().getId());
+		}
+		repeticoes.incrementAndGet();
+		return gravado.getId();
+	}
+}
@@ -0,0 +1,71 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.CacheDeIdempotencia;
+
+public class CacheDeIdempotenciaTeste {
+
+	private long agora;
+	private CacheDeIdempotencia cache;
+
+	/*
+	 * Controlamos o relgio do cache para no depender de Thread.sleep().
+	 */
+	@Before
+	public void antes() {
+		agora = 0;
+		cache = new CacheDeIdempotencia(2, 60, TimeUnit.SECONDS) {
+			@Override
+			protected long agora() {
+				return agora;
+			}
+		};
+	}
+
+	@Test
+	public void deveResponderAChaveDentroDaJanela() {
+		cache.guarda("a1", 10);
+
+		agora = 59999;
+		assertEquals(10, (int) cache.lanceDe("a1"));
+
+		agora = 60000;
+		assertNull(cache.lanceDe("a1"));
+		assertEquals(1, cache.getAcertos());
+		assertEquals(1, cache.getFaltas());
+	}
+
+	@Test
+	public void deveDescartarAChaveMaisAntigaAlemDaCapacidade() {
+		cache.guarda("a1", 10);
+		cache.guarda("a2", 20);
+		// consultar no renova a chave: a janela conta a partir do lance
+		cache.lanceDe("a1");
+		cache.guarda("a3", 30);
+
+		assertNull(cache.lanceDe("a1"));
+		assertEquals(20, (int) cache.lanceDe("a2"));
+		assertEquals(30, (int) cache.lanceDe("a3"));
+		assertEquals(1, cache.getDespejos());
+	}
+
+	@Test
+	public void deveDescartarAsChavesExpiradasAoGuardarOutra() {
+		cache.guarda("a1", 10);
+		agora = 30000;
+		cache.guarda("a2", 20);
+
+		agora = 61000;
+		cache.guarda("a3", 30);
+
+		assertEquals(2, cache.getTamanho());
+		assertEquals(0, cache.getDespejos());
+	}
+}
@@ -0,0 +1,77 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.CacheDeUsuarios;
+
+public class CacheDeUsuariosTeste {
+
+	private long agora;
+	private CacheDeUsuarios cache;
+
+	/*
+	 * Controlamos o relgio do cache para no depender de Thread.sleep().
+	 */
+	@Before
+	public void antes() {
+		agora = 0;
+		cache = new CacheDeUsuarios(2, 60, 5, TimeUnit.SECONDS) {
+			@Override
+			protected long agora() {
+				return agora;
+			}
+		};
+	}
+
+	@Test
+	public void deveExpirarUsuarioInexistenteDepoisDoTtlNegativo() {
+		cache.guardaInexistente("Mauricio", "m@a.com");
+
+		agora = 4999;
+		assertEquals(CacheDeUsuarios.INEXISTENTE, (int) cache.idDe("Mauricio", "m@a.com"));
+
+		agora = 5000;
+		assertNull(cache.idDe("Mauricio", "m@a.com"));
+	}
+
+	@Test
+	public void deveDescartarOUsuarioUsadoHaMaisTempoQuandoPassarDaCapacidade() {
+		cache.guarda("Mauricio", "m@a.com", 1);
+		cache.guarda("Victor", "v@v.com", 2);
+		cache.idDe("Mauricio", "m@a.com");
+
+		cache.guarda("Guilherme", "g@g.com", 3);
+
+		assertEquals(2, cache.getTamanho());
+		assertEquals(1L, cache.getDespejos());
+		assertNull(cache.idDe("Victor", "v@v.com"));
+		assertEquals(1, (int) cache.idDe("Mauricio", "m@a.com"));
+	}
+
+	@Test
+	public void deveInvalidarPeloIdMesmoSemSaberONomeAntigo() {
+		cache.guarda("Mauricio", "m@a.com", 1);
+
+		cache.invalidaId(1);
+
+		assertNull(cache.idDe("Mauricio", "m@a.com"));
+	}
+
+	@Test
+	public void deveCalcularATaxaDeAcerto() {
+		cache.guarda("Mauricio", "m@a.com", 1);
+
+		cache.idDe("Mauricio", "m@a.com");
+		cache.idDe("Mauricio", "m@a.com");
+		cache.idDe("Mauricio", "m@a.com");
+		cache.idDe("Victor", "v@v.com");
+
+		assertEquals(0.75, cache.getTaxaDeAcerto(), 0.00001);
+	}
+}
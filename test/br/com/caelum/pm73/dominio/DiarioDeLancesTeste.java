@@ -0,0 +1,164 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.DiarioDeLances;
+import br.com.caelum.pm73.dao.LancePendente;
+
+public class DiarioDeLancesTeste {
+
+	private File arquivo;
+	private DiarioDeLances diario;
+
+	@Before
+	public void antes() throws Exception {
+		arquivo = File.createTempFile("diario-de-lances", ".log");
+		diario = new DiarioDeLances(arquivo);
+	}
+
+	@After
+	public void depois() {
+		diario.fecha();
+		arquivo.delete();
+	}
+
+	@Test
+	public void deveDevolverSomenteOsLancesNaoConfirmados() {
+		diario.registra(new LancePendente(1, 10, 20, 100.0, 1000L));
+		diario.registra(new LancePendente(2, 10, 21, 200.0, 2000L));
+		diario.registra(new LancePendente(3, 11, 20, 300.0, 3000L));
+		diario.confirma(2);
+
+		List<LancePendente> pendentes = diario.pendentes();
+
+		assertEquals(1, pendentes.size());
+		assertEquals(3, pendentes.get(0).getSequencia());
+		assertEquals(11, pendentes.get(0).getLeilaoId());
+		assertEquals(20, pendentes.get(0).getUsuarioId());
+		assertEquals(300.0, pendentes.get(0).getValor(), 0.00001);
+		assertEquals(3000L, pendentes.get(0).getData().getTimeInMillis());
+	}
+
+	/*
+	 * Simulamos a queda do processo: o dirio  aberto de novo por outra
+	 * instncia, e a ltima linha foi cortada no meio da escrita.
+	 */
+	@Test
+	public void deveRecuperarOsLancesDepoisDeUmaQueda() throws Exception {
+		diario.registra(new LancePendente(1, 10, 20, 100.0, 1000L));
+		diario.registra(new LancePendente(2, 10, 21, 200.0, 2000L));
+		diario.fecha();
+
+		FileOutputStream saida = new FileOutputStream(arquivo, true);
+		saida.write("L;3;10;2".getBytes("UTF-8"));
+		saida.close();
+
+		List<LancePendente> pendentes = new DiarioDeLances(arquivo).pendentes();
+
+		assertEquals(2, pendentes.size());
+		assertEquals(1, pendentes.get(0).getSequencia());
+		assertEquals(2, pendentes.get(1).getSequencia());
+	}
+
+	/*
+	 * Os lances registrados depois da queda no podem ser colados na linha
+	 * cortada, seno se perdem junto com ela.
+	 */
+	@Test
+	public void naoDevePerderLancesRegistradosDepoisDeUmaQueda() throws Exception {
+		diario.registra(new LancePendente(1, 10, 20, 100.0, 1000L, "a:1"));
+		diario.fecha();
+
+		FileOutputStream saida = new FileOutputStream(arquivo, true);
+		saida.write("L;2;10;2".getBytes("UTF-8"));
+		saida.close();
+
+		DiarioDeLances depoisDaQueda = new DiarioDeLances(arquivo);
+		depoisDaQueda.registra(new LancePendente(3, 10, 21, 300.0, 3000L, "b:3"));
+		depoisDaQueda.registra(new LancePendente(4, 11, 22, 400.0, 4000L, "b:4"));
+		depoisDaQueda.fecha();
+
+		List<LancePendente> pendentes = new DiarioDeLances(arquivo).pendentes();
+
+		assertEquals(3, pendentes.size());
+		assertEquals(1, pendentes.get(0).getSequencia());
+		assertEquals(3, pendentes.get(1).getSequencia());
+		assertEquals("b:3", pendentes.get(1).getChave());
+		assertEquals(4, pendentes.get(2).getSequencia());
+	}
+
+	/*
+	 * Uma linha completa que s perdeu a quebra continua valendo.
+	 */
+	@Test
+	public void deveManterALinhaCompletaQuePerdeuAQuebra() throws Exception {
+		FileOutputStream saida = new FileOutputStream(arquivo, true);
+		saida.write("L;1;10;20;100.0;1000;a:1;F".getBytes("UTF-8"));
+		saida.close();
+
+		diario.registra(new LancePendente(2, 10, 21, 200.0, 2000L, "a:2"));
+		diario.fecha();
+
+		List<LancePendente> pendentes = new DiarioDeLances(arquivo).pendentes();
+
+		assertEquals(2, pendentes.size());
+		assertEquals("a:1", pendentes.get(0).getChave());
+		assertEquals("a:2", pendentes.get(1).getChave());
+	}
+
+	/*
+	 * Sem nunca esvaziar, o dirio  reescrito s com os pendentes a cada
+	 * poucas linhas, e nada se perde na reescrita.
+	 */
+	@Test
+	public void deveCompactarOsLancesJaConfirmados() throws Exception {
+		diario = new DiarioDeLances(arquivo, 10);
+		for (int i = 1; i <= 100; i++) {
+			diario.registra(new LancePendente(i, 10, 20, 100.0 * i, 1000L * i, "a:" + i));
+			if (i > 1) {
+				diario.confirma(i - 1);
+			}
+		}
+		diario.fecha();
+
+		assertTrue(linhas() <= 12);
+		List<LancePendente> pendentes = new DiarioDeLances(arquivo).pendentes();
+		assertEquals(1, pendentes.size());
+		assertEquals(100, pendentes.get(0).getSequencia());
+		assertEquals("a:100", pendentes.get(0).getChave());
+		assertEquals(100000L, pendentes.get(0).getData().getTimeInMillis());
+	}
+
+	@Test
+	public void naoDeveTerPendentesDepoisDeLimpar() {
+		diario.registra(new LancePendente(1, 10, 20, 100.0, 1000L));
+		diario.limpa();
+
+		assertTrue(diario.pendentes().isEmpty());
+		assertEquals(0L, arquivo.length());
+	}
+
+	private int linhas() throws Exception {
+		BufferedReader leitor = new BufferedReader(new FileReader(arquivo));
+		try {
+			int linhas = 0;
+			while (leitor.readLine() != null) {
+				linhas++;
+			}
+			return linhas;
+		} finally {
+			leitor.close();
+		}
+	}
+}
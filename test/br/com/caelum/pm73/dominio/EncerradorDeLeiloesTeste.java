@@ -0,0 +1,195 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.servico.EncerradorDeLeiloes;
+import br.com.caelum.pm73.servico.ObservadorDeEncerramento;
+
+@SuppressWarnings("deprecation")
+public class EncerradorDeLeiloesTeste {
+
+	private static final long UM_DIA = TimeUnit.DAYS.toMillis(1);
+
+	private SessionFactory fabrica;
+	private CriadorDeSessao criador;
+	private Observador observador;
+
+	@Before
+	public void antes() {
+		fabrica = new CriadorDeSessao().criaConfig("jdbc:hsqldb:mem:encerrador-teste")
+				.setProperty("hibernate.hbm2ddl.auto", "create").setProperty("hibernate.show_sql", "false")
+				.buildSessionFactory();
+		// o encerrador abre as sesses por aqui, no banco em memria
+		criador = new CriadorDeSessao() {
+			@Override
+			public Session getSession() {
+				return fabrica.openSession();
+			}
+		};
+		observador = new Observador();
+	}
+
+	@After
+	public void depois() {
+		fabrica.close();
+	}
+
+	@Test
+	public void deveEncerrarEmLotesTodosOsVencidosEAvisarOObservador() {
+		Usuario mauricio = salvaLeiloes(12, 10, 9, 8, 8, 2);
+
+		EncerradorDeLeiloes encerrador = new EncerradorDeLeiloes(criador, 7, 2, 1, 0, TimeUnit.HOURS);
+		encerrador.adicionaObservador(observador);
+
+		assertEquals(5, encerrador.executa());
+
+		assertEquals(1, observador.encerrados.size());
+		assertEquals(5, (int) observador.encerrados.get(0));
+		// o mais antigo venceu h 5 dias
+		long atraso = observador.atrasos.get(0);
+		assertTrue(atraso >= 5 * UM_DIA && atraso < 5 * UM_DIA + 60000);
+		assertEquals(5, encerrador.getEncerradosNaUltimaExecucao());
+		assertEquals(atraso, encerrador.getAtrasoDaUltimaExecucaoEmMillis());
+		assertEquals(5, encerrador.getTotalDeEncerrados());
+		assertEquals(1, abertosDe(mauricio));
+	}
+
+	@Test
+	public void execucaoSemVencidosDeveAvisarZeroSemMudarOTotal() {
+		salvaLeiloes(10, 1);
+
+		EncerradorDeLeiloes encerrador = new EncerradorDeLeiloes(criador, 7, 10, 1, 0, TimeUnit.HOURS);
+		encerrador.adicionaObservador(observador);
+		encerrador.executa();
+		encerrador.executa();
+
+		assertEquals(2, observador.encerrados.size());
+		assertEquals(0, (int) observador.encerrados.get(1));
+		assertEquals(0L, (long) observador.atrasos.get(1));
+		assertEquals(0, encerrador.getEncerradosNaUltimaExecucao());
+		assertEquals(1, encerrador.getTotalDeEncerrados());
+	}
+
+	@Test
+	public void deveRepassarAFalhaAoObservadorERelancar() {
+		fabrica.close();
+		// um banco sem as tabelas faz a primeira consulta falhar
+		fabrica = new CriadorDeSessao().criaConfig("jdbc:hsqldb:mem:encerrador-sem-tabelas")
+				.setProperty("hibernate.show_sql", "false").buildSessionFactory();
+
+		EncerradorDeLeiloes encerrador = new EncerradorDeLeiloes(criador, 7, 10, 1, 0, TimeUnit.HOURS);
+		encerrador.adicionaObservador(observador);
+		try {
+			encerrador.executa();
+			fail("deveria ter falhado");
+		} catch (RuntimeException e) {
+			assertEquals(1, observador.falhas.size());
+			assertEquals(e, observador.falhas.get(0));
+			assertTrue(observador.encerrados.isEmpty());
+		}
+	}
+
+	@Test
+	public void oAgendadorDeveRodarDeNovoRespeitandoOIntervalo() throws Exception {
+		salvaLeiloes(10);
+		observador.execucoesEsperadas = new CountDownLatch(3);
+
+		EncerradorDeLeiloes encerrador = new EncerradorDeLeiloes(criador, 7, 10, 50, 30, TimeUnit.MILLISECONDS);
+		encerrador.adicionaObservador(observador);
+		long inicio = System.currentTimeMillis();
+		encerrador.inicia();
+		try {
+			assertTrue(observador.execucoesEsperadas.await(5, TimeUnit.SECONDS));
+		} finally {
+			encerrador.para();
+		}
+
+		// cada espera  o intervalo mais um atraso aleatrio de no mximo 30 ms
+		List<Long> momentos = observador.momentos;
+		assertTrue(momentos.get(0) - inicio >= 50);
+		for (int i = 1; i < 3; i++) {
+			assertTrue(momentos.get(i) - momentos.get(i - 1) >= 50);
+		}
+		assertEquals(1, (int) observador.encerrados.get(0));
+		assertEquals(0, (int) observador.encerrados.get(1));
+		assertEquals(1, encerrador.getTotalDeEncerrados());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void naoDeveIniciarDuasVezes() {
+		EncerradorDeLeiloes encerrador = new EncerradorDeLeiloes(criador, 7, 10, 1, 0, TimeUnit.HOURS);
+		encerrador.inicia();
+		try {
+			encerrador.inicia();
+		} finally {
+			encerrador.para();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void naoDeveAceitarLoteVazio() {
+		new EncerradorDeLeiloes(criador, 7, 0, 1, 0, TimeUnit.HOURS);
+	}
+
+	/*
+	 * Um leilo aberto h cada quantidade de dias dada, todos do mesmo dono.
+	 */
+	private Usuario salvaLeiloes(int... diasAtras) {
+		Session session = fabrica.openSession();
+		session.beginTransaction();
+		Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		new UsuarioDao(session).salvar(mauricio);
+		LeilaoDao dao = new LeilaoDao(session);
+		for (int dias : diasAtras) {
+			dao.salvar(new LeilaoBuilder().comDono(mauricio).diasAtras(dias).constroi());
+		}
+		session.getTransaction().commit();
+		session.close();
+		return mauricio;
+	}
+
+	private long abertosDe(Usuario dono) {
+		Session session = fabrica.openSession();
+		try {
+			return (Long) session.createQuery("select count(l) from Leilao l where l.dono.id = :dono "
+					+ "and l.encerrado = false").setParameter("dono", dono.getId()).uniqueResult();
+		} finally {
+			session.close();
+		}
+	}
+
+	private static class Observador implements ObservadorDeEncerramento {
+		final List<Integer> encerrados = new ArrayList<Integer>();
+		final List<Long> atrasos = new ArrayList<Long>();
+		final List<Long> momentos = new ArrayList<Long>();
+		final List<RuntimeException> falhas = new ArrayList<RuntimeException>();
+		volatile CountDownLatch execucoesEsperadas = new CountDownLatch(0);
+
+		public synchronized void encerrou(int quantidade, long atrasoEmMillis) {
+			encerrados.add(quantidade);
+			atrasos.add(atrasoEmMillis);
+			momentos.add(System.currentTimeMillis());
+			execucoesEsperadas.countDown();
+		}
+
+		public synchronized void falhou(RuntimeException e) {
+			falhas.add(e);
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.CursorDeAlteracoes;
+import br.com.caelum.pm73.dao.DiarioDeAlteracoes;
+import br.com.caelum.pm73.dao.EventoDeAlteracao;
+import br.com.caelum.pm73.dao.FluxoDeAlteracoes;
+import br.com.caelum.pm73.dao.TipoDeAlteracao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+
+public class FluxoDeAlteracoesTeste {
+
+	@Test
+	public void cadaCursorDeveLerOsEventosEmOrdemNoSeuRitmo() {
+		FluxoDeAlteracoes fluxo = new FluxoDeAlteracoes(8);
+		CursorDeAlteracoes rapido = fluxo.novoCursor();
+		CursorDeAlteracoes lento = fluxo.novoCursor();
+
+		fluxo.publica(TipoDeAlteracao.INSERCAO, "Leilao", 1);
+		fluxo.publica(TipoDeAlteracao.ATUALIZACAO, "Leilao", 1);
+		fluxo.publica(TipoDeAlteracao.REMOCAO, "Leilao", 1);
+
+		List<EventoDeAlteracao> todos = rapido.proximos(10);
+		assertEquals(3, todos.size());
+		assertEquals(TipoDeAlteracao.INSERCAO, todos.get(0).getTipo());
+		assertEquals(TipoDeAlteracao.REMOCAO, todos.get(2).getTipo());
+		assertTrue(rapido.proximos(10).isEmpty());
+
+		assertEquals(2, lento.proximos(2).size());
+		assertEquals(TipoDeAlteracao.REMOCAO, lento.proximos(2).get(0).getTipo());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void cursorQueFicouUmaVoltaAtrasSemDiarioDeveFalhar() {
+		FluxoDeAlteracoes fluxo = new FluxoDeAlteracoes(4);
+		CursorDeAlteracoes cursor = fluxo.novoCursor();
+
+		for (int i = 1; i <= 5; i++) {
+			fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", i);
+		}
+
+		cursor.proximos(10);
+	}
+
+	/*
+	 * O consumidor guarda a ltima sequncia que processou; depois de reiniciar,
+	 * um fluxo novo sobre o mesmo dirio continua a numerao e entrega o que
+	 * ficou para trs.
+	 */
+	@Test
+	public void deveRetomarALeituraPeloDiarioDepoisDeReiniciar() throws Exception {
+		File arquivo = File.createTempFile("alteracoes", ".log");
+		try {
+			DiarioDeAlteracoes diario = new DiarioDeAlteracoes(arquivo);
+			FluxoDeAlteracoes fluxo = new FluxoDeAlteracoes(4, diario);
+			CursorDeAlteracoes cursor = fluxo.novoCursor();
+			for (int i = 1; i <= 6; i++) {
+				fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", i);
+			}
+			assertEquals(1L, cursor.proximos(1).get(0).getSequencia());
+			long proxima = cursor.getProxima();
+			diario.fecha();
+
+			FluxoDeAlteracoes depoisDeReiniciar = new FluxoDeAlteracoes(4, new DiarioDeAlteracoes(arquivo));
+			assertEquals(7L, depoisDeReiniciar.publica(TipoDeAlteracao.REMOCAO, "Lance", 1).getSequencia());
+
+			CursorDeAlteracoes retomado = depoisDeReiniciar.cursorDesde(proxima);
+			List<EventoDeAlteracao> eventos = retomado.proximos(4);
+			assertEquals(4, eventos.size());
+			assertEquals(2L, eventos.get(0).getSequencia());
+			assertEquals(5L, eventos.get(3).getSequencia());
+
+			eventos = retomado.proximos(10);
+			assertEquals(2, eventos.size());
+			assertEquals(Integer.valueOf(6), eventos.get(0).getId());
+			assertEquals(7L, eventos.get(1).getSequencia());
+
+			depoisDeReiniciar.publica(TipoDeAlteracao.REMOCAO, "Lance", 2);
+			assertEquals(8L, retomado.proximos(10).get(0).getSequencia());
+		} finally {
+			arquivo.delete();
+		}
+	}
+
+	/*
+	 * Publicaes concorrentes, e um consumidor que l tudo do dirio em
+	 * lotes: nenhum evento pode faltar nem vir fora de ordem.
+	 */
+	@Test
+	public void deveLerEmLotesDoDiarioOQuePublicacoesConcorrentesEscreveram() throws Exception {
+		File arquivo = File.createTempFile("alteracoes", ".log");
+		try {
+			final FluxoDeAlteracoes fluxo = new FluxoDeAlteracoes(4, new DiarioDeAlteracoes(arquivo));
+			CursorDeAlteracoes cursor = fluxo.novoCursor();
+
+			Thread[] publicadores = new Thread[4];
+			for (int i = 0; i < publicadores.length; i++) {
+				publicadores[i] = new Thread(new Runnable() {
+					public void run() {
+						for (int j = 0; j < 250; j++) {
+							fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", j);
+						}
+					}
+				});
+				publicadores[i].start();
+			}
+			for (Thread publicador : publicadores) {
+				publicador.join();
+			}
+
+			long esperada = 1;
+			List<EventoDeAlteracao> lote;
+			while (!(lote = cursor.proximos(100)).isEmpty()) {
+				for (EventoDeAlteracao evento : lote) {
+					assertEquals(esperada++, evento.getSequencia());
+				}
+			}
+			assertEquals(1001L, esperada);
+
+			DiarioDeAlteracoes reaberto = new DiarioDeAlteracoes(arquivo);
+			assertEquals(1000L, reaberto.ultimaSequencia());
+			assertEquals(600L, reaberto.leDesde(600, 10).get(0).getSequencia());
+			assertEquals(10, reaberto.leDesde(600, 10).size());
+			reaberto.fecha();
+		} finally {
+			arquivo.delete();
+		}
+	}
+
+	/*
+	 * Uma queda no meio da escrita deixou a ltima linha cortada: o evento
+	 * seguinte no pode ser colado nela.
+	 */
+	@Test
+	public void deveDescartarALinhaCortadaAoReabrirODiario() throws Exception {
+		File arquivo = File.createTempFile("alteracoes", ".log");
+		try {
+			DiarioDeAlteracoes diario = new DiarioDeAlteracoes(arquivo);
+			FluxoDeAlteracoes fluxo = new FluxoDeAlteracoes(4, diario);
+			fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", 1);
+			fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", 2);
+			diario.fecha();
+
+			FileOutputStream saida = new FileOutputStream(arquivo, true);
+			saida.write("3;INSERCAO;La".getBytes("UTF-8"));
+			saida.close();
+
+			DiarioDeAlteracoes reaberto = new DiarioDeAlteracoes(arquivo);
+			assertEquals(3L, new FluxoDeAlteracoes(4, reaberto).publica(TipoDeAlteracao.REMOCAO, "Lance", 1)
+					.getSequencia());
+
+			List<EventoDeAlteracao> eventos = reaberto.leDesde(1, 10);
+			assertEquals(3, eventos.size());
+			assertEquals(TipoDeAlteracao.REMOCAO, eventos.get(2).getTipo());
+			reaberto.fecha();
+		} finally {
+			arquivo.delete();
+		}
+	}
+
+	/*
+	 * A cada volta do buffer o dirio perde o que o cursor mais lento j leu;
+	 * um cursor fechado no segura mais nada.
+	 */
+	@Test
+	public void deveDescartarDoDiarioOQueTodosOsCursoresJaLeram() throws Exception {
+		File arquivo = File.createTempFile("alteracoes", ".log");
+		try {
+			DiarioDeAlteracoes diario = new DiarioDeAlteracoes(arquivo);
+			FluxoDeAlteracoes fluxo = new FluxoDeAlteracoes(4, diario);
+			CursorDeAlteracoes rapido = fluxo.novoCursor();
+			CursorDeAlteracoes lento = fluxo.novoCursor();
+			for (int i = 1; i <= 8; i++) {
+				fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", i);
+			}
+			rapido.proximos(8);
+			lento.proximos(5);
+			for (int i = 9; i <= 12; i++) {
+				fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", i);
+			}
+			diario.fecha();
+
+			DiarioDeAlteracoes reaberto = new DiarioDeAlteracoes(arquivo);
+			assertEquals(7, reaberto.leDesde(6, 10).size());
+			assertFoiDescartado(reaberto, 5);
+
+			FluxoDeAlteracoes depoisDeReiniciar = new FluxoDeAlteracoes(4, reaberto);
+			depoisDeReiniciar.cursorDesde(6).fecha();
+			CursorDeAlteracoes novo = depoisDeReiniciar.novoCursor();
+			for (int i = 13; i <= 16; i++) {
+				depoisDeReiniciar.publica(TipoDeAlteracao.INSERCAO, "Lance", i);
+			}
+			reaberto.fecha();
+			assertEquals(13L, novo.getProxima());
+
+			DiarioDeAlteracoes outraVez = new DiarioDeAlteracoes(arquivo);
+			try {
+				assertEquals(16L, outraVez.ultimaSequencia());
+				assertEquals(4, outraVez.leDesde(13, 10).size());
+				assertFoiDescartado(outraVez, 12);
+			} finally {
+				outraVez.fecha();
+			}
+		} finally {
+			arquivo.delete();
+		}
+	}
+
+	private void assertFoiDescartado(DiarioDeAlteracoes diario, long sequencia) {
+		try {
+			diario.leDesde(sequencia, 10);
+			fail("o evento " + sequencia + " j devia ter sido descartado");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	/*
+	 * Com o dirio fechado nenhuma sequncia  reservada: um buraco na
+	 * numerao pararia os cursores e a escrita do dirio.
+	 */
+	@Test
+	public void naoDeveReservarSequenciaDepoisDeFecharODiario() throws Exception {
+		File arquivo = File.createTempFile("alteracoes", ".log");
+		try {
+			FluxoDeAlteracoes fluxo = new FluxoDeAlteracoes(4, new DiarioDeAlteracoes(arquivo));
+			fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", 1);
+			fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", 2);
+			fluxo.fecha();
+
+			try {
+				fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", 3);
+				fail("o dirio j estava fechado");
+			} catch (IllegalStateException e) {
+			}
+			assertEquals(2L, fluxo.getUltimaSequencia());
+		} finally {
+			arquivo.delete();
+		}
+	}
+
+	@Test
+	public void fecharOCriadorDeveTerminarDeEscreverODiario() throws Exception {
+		File arquivo = File.createTempFile("alteracoes", ".log");
+		CriadorDeSessao criador = new CriadorDeSessao();
+		System.setProperty("caelum.alteracoes.diario", arquivo.getAbsolutePath());
+		try {
+			criador.fecha();
+			FluxoDeAlteracoes fluxo = criador.getFluxoDeAlteracoes();
+			fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", 1);
+			criador.fecha();
+
+			try {
+				fluxo.publica(TipoDeAlteracao.INSERCAO, "Lance", 2);
+				fail("o dirio j estava fechado");
+			} catch (IllegalStateException e) {
+			}
+			DiarioDeAlteracoes reaberto = new DiarioDeAlteracoes(arquivo);
+			assertEquals(1, reaberto.leDesde(1, 10).size());
+			reaberto.fecha();
+		} finally {
+			System.clearProperty("caelum.alteracoes.diario");
+			criador.fecha();
+			arquivo.delete();
+		}
+	}
+
+	/*
+	 * As operaes em lote publicam no fluxo da fbrica da sesso, como os
+	 * eventos das entidades; uma fbrica avulsa no publica no fluxo global.
+	 */
+	@Test
+	@SuppressWarnings("deprecation")
+	public void operacoesEmLoteDeOutraFabricaNaoDevemIrParaOFluxoGlobal() {
+		CriadorDeSessao criador = new CriadorDeSessao();
+		CursorDeAlteracoes cursor = criador.getFluxoDeAlteracoes().novoCursor();
+		SessionFactory fabrica = criador.criaConfig("jdbc:hsqldb:mem:fluxo-outra-fabrica")
+				.setProperty("hibernate.hbm2ddl.auto", "create").setProperty("hibernate.show_sql", "false")
+				.buildSessionFactory();
+		try {
+			Session session = fabrica.openSession();
+			UsuarioDao dao = new UsuarioDao(session);
+			session.beginTransaction();
+			Usuario usuario = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+			dao.salvar(usuario);
+			dao.renomeia(usuario.getId(), "Mauricio");
+			session.getTransaction().commit();
+			session.close();
+
+			assertTrue(cursor.proximos(10).isEmpty());
+		} finally {
+			fabrica.close();
+		}
+	}
+
+	@Test
+	public void deveTrazerSomenteAlteracoesCommitadas() {
+		CriadorDeSessao criador = new CriadorDeSessao();
+		Session session = criador.getSession();
+		UsuarioDao dao = new UsuarioDao(session);
+		CursorDeAlteracoes cursor = criador.getFluxoDeAlteracoes().novoCursor();
+
+		session.beginTransaction();
+		dao.salvar(new Usuario("Mauricio Aniche", "mauricio@aniche.com.br"));
+		session.flush();
+		session.getTransaction().rollback();
+		assertTrue(cursor.proximos(10).isEmpty());
+
+		session.beginTransaction();
+		Usuario usuario = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		dao.salvar(usuario);
+		session.getTransaction().commit();
+
+		// apagamos o usurio para no deixar sujeira para os outros testes
+		session.beginTransaction();
+		dao.deletar(usuario);
+		session.getTransaction().commit();
+		session.close();
+
+		List<EventoDeAlteracao> eventos = cursor.proximos(10);
+		assertEquals(2, eventos.size());
+		assertEquals(TipoDeAlteracao.INSERCAO, eventos.get(0).getTipo());
+		assertEquals("Usuario", eventos.get(0).getEntidade());
+		assertEquals(Integer.valueOf(usuario.getId()), eventos.get(0).getId());
+		assertEquals(TipoDeAlteracao.REMOCAO, eventos.get(1).getTipo());
+	}
+}
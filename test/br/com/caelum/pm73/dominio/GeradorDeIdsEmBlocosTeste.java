@@ -0,0 +1,111 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.ShardsDeLeilao;
+
+@SuppressWarnings("deprecation")
+public class GeradorDeIdsEmBlocosTeste {
+
+	@Test
+	public void cadaFabricaDeveReservarSeuProprioBlocoDeIds() {
+		String url = "jdbc:hsqldb:mem:ids-em-blocos";
+		CriadorDeSessao criador = new CriadorDeSessao();
+		SessionFactory uma = criador.criaConfig(url).setProperty("hibernate.hbm2ddl.auto", "create")
+				.buildSessionFactory();
+		// outra fbrica no mesmo banco faz o papel de outra JVM
+		SessionFactory outra = criador.criaConfig(url).buildSessionFactory();
+
+		try {
+			Usuario primeiro = salva(uma, new Usuario("Mauricio Aniche", "mauricio@aniche.com.br"));
+			Usuario daOutra = salva(outra, new Usuario("Marcelo Ribeiro", "marcelo@ribeiro.com.br"));
+			Usuario segundo = salva(uma, new Usuario("Fernanda Costa", "fernanda@costa.com.br"));
+
+			assertEquals(primeiro.getId() + 1, segundo.getId());
+			assertTrue(daOutra.getId() >= primeiro.getId() + 20);
+		} finally {
+			outra.close();
+			uma.close();
+		}
+	}
+
+	@Test
+	public void deveGerarIdsAcimaDosQueJaExistiamNoBanco() throws Exception {
+		File diretorio = File.createTempFile("ids", "");
+		diretorio.delete();
+		diretorio.mkdir();
+		String url = "jdbc:hsqldb:file:" + new File(diretorio, "banco").getAbsolutePath() + ";shutdown=true";
+
+		SessionFactory antiga = new CriadorDeSessao().criaConfig(url).setProperty("hibernate.hbm2ddl.auto", "create")
+				.buildSessionFactory();
+		Session session = antiga.openSession();
+		session.beginTransaction();
+		session.createSQLQuery("INSERT INTO USUARIO (ID, NOME, EMAIL) VALUES (500, 'Antigo', 'antigo@caelum.com.br')")
+				.executeUpdate();
+		session.getTransaction().commit();
+		session.close();
+		antiga.close();
+
+		ShardsDeLeilao shards = new ShardsDeLeilao(new CriadorDeSessao(), Arrays.asList(url));
+		try {
+			Usuario novo = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+			shards.salvaUsuario(novo);
+
+			assertTrue(novo.getId() > 500);
+		} finally {
+			shards.fecha();
+			for (File arquivo : diretorio.listFiles()) {
+				arquivo.delete();
+			}
+			diretorio.delete();
+		}
+	}
+
+	@Test
+	public void naoDeveTrocarOIncrementoDeUmaSequenciaQueOutraJvmUsa() {
+		String url = "jdbc:hsqldb:mem:ids-outro-bloco";
+		// a primeira "JVM" cria a USUARIO_SEQ com o bloco de 20 da anotao
+		SessionFactory uma = new CriadorDeSessao().criaConfig(url).setProperty("hibernate.hbm2ddl.auto", "create")
+				.buildSessionFactory();
+
+		System.setProperty("caelum.ids.Usuario", "30");
+		try {
+			new ShardsDeLeilao(new CriadorDeSessao(), Arrays.asList(url));
+			fail("blocos de 30 numa sequncia que anda de 20 em 20 repetiriam ids");
+		} catch (IllegalStateException e) {
+			assertEquals("20", incrementoDaSequencia(uma, "USUARIO_SEQ"));
+		} finally {
+			System.clearProperty("caelum.ids.Usuario");
+			uma.close();
+		}
+	}
+
+	private String incrementoDaSequencia(SessionFactory fabrica, String sequencia) {
+		Session session = fabrica.openSession();
+		try {
+			return session.createSQLQuery("SELECT INCREMENT FROM INFORMATION_SCHEMA.SEQUENCES "
+					+ "WHERE SEQUENCE_NAME = :sequencia").setParameter("sequencia", sequencia).uniqueResult().toString();
+		} finally {
+			session.close();
+		}
+	}
+
+	private Usuario salva(SessionFactory fabrica, Usuario usuario) {
+		Session session = fabrica.openSession();
+		session.beginTransaction();
+		session.save(usuario);
+		session.getTransaction().commit();
+		session.close();
+		return usuario;
+	}
+}
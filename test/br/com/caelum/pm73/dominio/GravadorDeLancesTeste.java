@@ -0,0 +1,307 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.DiarioDeLances;
+import br.com.caelum.pm73.dao.Durabilidade;
+import br.com.caelum.pm73.dao.GravadorDeLances;
+import br.com.caelum.pm73.dao.LancePendente;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+
+@SuppressWarnings("deprecation")
+public class GravadorDeLancesTeste {
+
+	private static final int LEILAO_INEXISTENTE = 999999;
+
+	private SessionFactory fabrica;
+	private CriadorDeSessao criador;
+	private File arquivo;
+	private DiarioDeLances diario;
+	private GravadorDeLances gravador;
+	private Usuario mauricio;
+	private Leilao leilao;
+
+	// enquanto houver um porto, a thread de gravao fica parada nele
+	private volatile CountDownLatch portao;
+	private final CountDownLatch entrou = new CountDownLatch(1);
+
+	@Before
+	public void antes() throws Exception {
+		fabrica = new CriadorDeSessao().criaConfig("jdbc:hsqldb:mem:gravador-teste")
+				.setProperty("hibernate.hbm2ddl.auto", "create").setProperty("hibernate.show_sql", "false")
+				.buildSessionFactory();
+		criador = new CriadorDeSessao() {
+			@Override
+			public Session getSession() {
+				entrou.countDown();
+				if (portao != null) {
+					try {
+						portao.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return fabrica.openSession();
+			}
+		};
+
+		arquivo = File.createTempFile("diario-do-gravador", ".log");
+		diario = new DiarioDeLances(arquivo);
+
+		mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		leilao = new LeilaoBuilder().comDono(mauricio).comNome("Geladeira").constroi();
+		Session session = fabrica.openSession();
+		session.beginTransaction();
+		new UsuarioDao(session).salvar(mauricio);
+		new LeilaoDao(session).salvar(leilao);
+		session.getTransaction().commit();
+		session.close();
+	}
+
+	@After
+	public void depois() throws Exception {
+		if (portao != null) {
+			portao.countDown();
+		}
+		if (gravador != null) {
+			gravador.para();
+		}
+		diario.fecha();
+		arquivo.delete();
+		fabrica.close();
+	}
+
+	@Test
+	public void deveGravarOsLancesEmGrupos() throws Exception {
+		gravador = new GravadorDeLances(criador, diario, Durabilidade.GRUPO, 100, 5, 1, TimeUnit.SECONDS);
+		gravador.inicia();
+
+		List<LancePendente> aceitos = new ArrayList<LancePendente>();
+		for (int i = 1; i <= 10; i++) {
+			aceitos.add(gravador.registra(leilao.getId(), mauricio.getId(), 100.0 * i, Calendar.getInstance()));
+		}
+		gravador.para();
+
+		assertEquals(10, gravador.getGravados());
+		assertEquals(2, gravador.getGrupos());
+		for (LancePendente aceito : aceitos) {
+			assertTrue(aceito.isGravado());
+		}
+		assertEquals(10, lancesGravados());
+		// tudo confirmado: o dirio foi esvaziado
+		assertEquals(0L, arquivo.length());
+	}
+
+	@Test
+	public void comDurabilidadeSincronaOLanceJaEstaNoBancoQuandoRegistraVolta() throws Exception {
+		gravador = new GravadorDeLances(criador, diario, Durabilidade.SINCRONA, 100, 10, 0, TimeUnit.MILLISECONDS);
+		gravador.inicia();
+
+		gravador.registra(leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+		assertEquals(1, lancesGravados());
+
+		try {
+			gravador.registra(LEILAO_INEXISTENTE, mauricio.getId(), 200.0, Calendar.getInstance());
+			fail("o lance no tinha como ser gravado");
+		} catch (RuntimeException e) {
+			assertEquals(1, gravador.getFalhas());
+		}
+	}
+
+	@Test
+	public void comDurabilidadeDeGrupoAFalhaFicaNoLanceDevolvido() throws Exception {
+		gravador = new GravadorDeLances(criador, diario, Durabilidade.GRUPO, 100, 3, 1, TimeUnit.SECONDS);
+		gravador.inicia();
+
+		LancePendente bom = gravador.registra(leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+		LancePendente ruim = gravador.registra(LEILAO_INEXISTENTE, mauricio.getId(), 200.0, Calendar.getInstance());
+		LancePendente outroBom = gravador.registra(leilao.getId(), mauricio.getId(), 300.0, Calendar.getInstance());
+
+		try {
+			ruim.aguardaGravacao();
+			fail("o lance no tinha como ser gravado");
+		} catch (RuntimeException e) {
+			assertNotNull(ruim.getErro());
+		}
+		bom.aguardaGravacao();
+		outroBom.aguardaGravacao();
+
+		// o grupo falhou, mas os lances bons foram regravados um a um
+		assertEquals(2, lancesGravados());
+		assertEquals(1, gravador.getFalhas());
+	}
+
+	@Test
+	public void deveSegurarQuemDaLanceQuandoOBufferEnche() throws Exception {
+		portao = new CountDownLatch(1);
+		gravador = new GravadorDeLances(criador, diario, Durabilidade.GRUPO, 2, 1, 0, TimeUnit.MILLISECONDS);
+		gravador.inicia();
+
+		// o primeiro sai do buffer e fica parado no porto; os dois seguintes o enchem
+		gravador.registra(leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+		assertTrue(entrou.await(5, TimeUnit.SECONDS));
+		gravador.registra(leilao.getId(), mauricio.getId(), 200.0, Calendar.getInstance());
+		gravador.registra(leilao.getId(), mauricio.getId(), 300.0, Calendar.getInstance());
+
+		assertNull(gravador.tentaRegistrar(leilao.getId(), mauricio.getId(), 400.0, Calendar.getInstance(), 50,
+				TimeUnit.MILLISECONDS));
+		assertEquals(2, gravador.getPendentes());
+
+		portao.countDown();
+		gravador.para();
+
+		assertEquals(3, gravador.getGravados());
+		assertEquals(3, lancesGravados());
+	}
+
+	/*
+	 * O processo caiu depois do commit do lance 1 e antes da confirmao no
+	 * dirio: os dois voltam como pendentes, mas s o 2 pode ser gravado.
+	 */
+	@Test
+	public void naoDeveDuplicarNaRecuperacaoOsLancesQueJaEstavamNoBanco() throws Exception {
+		diario.registra(new LancePendente(1, leilao.getId(), mauricio.getId(), 100.0, 1000L, "antes:1"));
+		diario.registra(new LancePendente(2, leilao.getId(), mauricio.getId(), 200.0, 2000L, "antes:2"));
+		diario.fecha();
+
+		Session session = fabrica.openSession();
+		session.beginTransaction();
+		Lance jaGravado = new Lance(Calendar.getInstance(), mauricio, 100.0, leilao);
+		jaGravado.setChaveDeIdempotencia("antes:1");
+		new LeilaoDao(session).salvaLance(jaGravado);
+		session.getTransaction().commit();
+		session.close();
+
+		gravador = new GravadorDeLances(criador, new DiarioDeLances(arquivo), Durabilidade.GRUPO, 100, 10, 0,
+				TimeUnit.MILLISECONDS);
+		gravador.inicia();
+		gravador.para();
+
+		assertEquals(2, lancesGravados());
+		assertEquals(1, lancesComAChave("antes:1"));
+		assertEquals(1, lancesComAChave("antes:2"));
+		assertEquals(0L, arquivo.length());
+	}
+
+	/*
+	 * H mais pendentes do que cabe no buffer, e o lance novo s entra depois
+	 * deles, com uma sequncia acima de todos.
+	 */
+	@Test
+	public void deveAceitarLancesNovosSoDepoisDeRecuperarOsPendentes() throws Exception {
+		for (int i = 1; i <= 3; i++) {
+			diario.registra(new LancePendente(i, leilao.getId(), mauricio.getId(), 100.0 * i, 1000L * i, "antes:" + i));
+		}
+		diario.fecha();
+
+		gravador = new GravadorDeLances(criador, new DiarioDeLances(arquivo), Durabilidade.GRUPO, 2, 1, 0,
+				TimeUnit.MILLISECONDS);
+		gravador.inicia();
+		LancePendente novo = gravador.registra(leilao.getId(), mauricio.getId(), 400.0, Calendar.getInstance());
+		gravador.para();
+
+		assertEquals(4, novo.getSequencia());
+		assertEquals(4, lancesGravados());
+		assertEquals(0L, arquivo.length());
+	}
+
+	/*
+	 * Quem ficou esperando espao no buffer enquanto o gravador parava 
+	 * recusado, em vez de deixar um lance que ningum mais vai gravar.
+	 */
+	@Test
+	public void deveRecusarQuemEsperavaEspacoQuandoOGravadorParou() throws Exception {
+		portao = new CountDownLatch(1);
+		gravador = new GravadorDeLances(criador, diario, Durabilidade.GRUPO, 1, 1, 0, TimeUnit.MILLISECONDS);
+		gravador.inicia();
+
+		gravador.registra(leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+		assertTrue(entrou.await(5, TimeUnit.SECONDS));
+		gravador.registra(leilao.getId(), mauricio.getId(), 200.0, Calendar.getInstance());
+
+		final List<Exception> erros = new ArrayList<Exception>();
+		Thread esperando = new Thread(new Runnable() {
+			public void run() {
+				try {
+					gravador.registra(leilao.getId(), mauricio.getId(), 300.0, Calendar.getInstance());
+				} catch (Exception e) {
+					erros.add(e);
+				}
+			}
+		});
+		esperando.start();
+		aguardaBloquear(esperando);
+
+		Thread parando = new Thread(new Runnable() {
+			public void run() {
+				try {
+					gravador.para();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		parando.start();
+		aguardaBloquear(parando);
+
+		portao.countDown();
+		parando.join(5000);
+		esperando.join(5000);
+
+		assertEquals(1, erros.size());
+		assertTrue(erros.get(0) instanceof IllegalStateException);
+		assertEquals(2, gravador.getGravados());
+		assertEquals(2, lancesGravados());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void naoDeveAceitarLancesAntesDeIniciar() throws Exception {
+		new GravadorDeLances(criador, diario, Durabilidade.GRUPO, 10, 5, 0, TimeUnit.MILLISECONDS).registra(
+				leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+	}
+
+	private void aguardaBloquear(Thread thread) throws InterruptedException {
+		long limite = System.currentTimeMillis() + 5000;
+		while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < limite) {
+			Thread.sleep(10);
+		}
+	}
+
+	private long lancesGravados() {
+		Session session = fabrica.openSession();
+		try {
+			return (Long) session.createQuery("select count(l) from Lance l").uniqueResult();
+		} finally {
+			session.close();
+		}
+	}
+
+	private long lancesComAChave(String chave) {
+		Session session = fabrica.openSession();
+		try {
+			return (Long) session.createQuery("select count(l) from Lance l where l.chaveDeIdempotencia = :chave")
+					.setParameter("chave", chave).uniqueResult();
+		} finally {
+			session.close();
+		}
+	}
+}
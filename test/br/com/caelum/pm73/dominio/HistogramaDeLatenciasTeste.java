@@ -0,0 +1,47 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import br.com.caelum.pm73.carga.HistogramaDeLatencias;
+
+public class HistogramaDeLatenciasTeste {
+
+	@Test
+	public void valoresPequenosDevemSerExatos() {
+		HistogramaDeLatencias histograma = new HistogramaDeLatencias();
+		for (int i = 1; i <= 100; i++) {
+			histograma.registra(i);
+		}
+
+		assertEquals(50, histograma.percentil(50));
+		assertEquals(99, histograma.percentil(99));
+		assertEquals(100, histograma.percentil(100));
+		assertEquals(50.5, histograma.getMedia(), 0.00001);
+	}
+
+	@Test
+	public void valoresGrandesDevemTerErroRelativoPequeno() {
+		HistogramaDeLatencias histograma = new HistogramaDeLatencias();
+		for (long i = 1; i <= 10000; i++) {
+			histograma.registra(i * 1000);
+		}
+
+		long mediana = histograma.percentil(50);
+		assertTrue(mediana >= 5000000 && mediana <= 5000000 * 1.016);
+		long p999 = histograma.percentil(99.9);
+		assertTrue(p999 >= 9990000 && p999 <= 9990000 * 1.016);
+		assertEquals(10000000, histograma.getMaximo());
+		assertEquals(10000000, histograma.percentil(100));
+	}
+
+	@Test
+	public void histogramaVazioDeveResponderZero() {
+		HistogramaDeLatencias histograma = new HistogramaDeLatencias();
+
+		assertEquals(0, histograma.percentil(99));
+		assertEquals(0.0, histograma.getMedia(), 0.00001);
+	}
+}
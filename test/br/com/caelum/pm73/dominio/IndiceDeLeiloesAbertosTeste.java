@@ -0,0 +1,133 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.IndiceDeLeiloesAbertos;
+
+public class IndiceDeLeiloesAbertosTeste {
+
+	private IndiceDeLeiloesAbertos indice;
+
+	@Before
+	public void antes() {
+		indice = new IndiceDeLeiloesAbertos();
+	}
+
+	private void registra(int id, double valor, int diasAtras) {
+		Calendar abertura = Calendar.getInstance();
+		abertura.add(Calendar.DAY_OF_MONTH, -diasAtras);
+		indice.registra(id, valor, abertura);
+	}
+
+	@Test
+	public void deveContarEListarPorFaixaDeValorEmOrdem() {
+		registra(1, 300.0, 1);
+		registra(2, 100.0, 1);
+		registra(3, 200.0, 1);
+		registra(4, 200.0, 1);
+		registra(5, 900.0, 1);
+
+		assertEquals(4, indice.contaPorValorInicial(100.0, 300.0));
+		assertEquals(Arrays.asList(2, 3, 4, 1), indice.porValorInicial(100.0, 300.0, 0, 10));
+		assertEquals(Arrays.asList(4, 1), indice.porValorInicial(100.0, 300.0, 2, 2));
+		assertEquals(0, indice.contaPorValorInicial(400.0, 800.0));
+		assertEquals(0, indice.contaPorValorInicial(300.0, 100.0));
+	}
+
+	@Test
+	public void deveListarPorPeriodoDoMaisAntigoParaOMaisNovo() {
+		registra(1, 100.0, 1);
+		registra(2, 100.0, 5);
+		registra(3, 100.0, 20);
+
+		Calendar inicio = Calendar.getInstance();
+		inicio.add(Calendar.DAY_OF_MONTH, -10);
+		Calendar fim = Calendar.getInstance();
+
+		assertEquals(2, indice.contaPorPeriodo(inicio, fim));
+		assertEquals(Arrays.asList(2, 1), indice.porPeriodo(inicio, fim, 0, 10));
+	}
+
+	@Test
+	public void soDeveConsiderarDisputadoOLeilaoComMaisDeTresLances() {
+		registra(1, 100.0, 1);
+		for (int i = 0; i < IndiceDeLeiloesAbertos.LANCES_PARA_DISPUTA; i++) {
+			indice.registraLance(1);
+		}
+		assertEquals(0, indice.contaDisputadosEntre(0.0, 1000.0));
+
+		indice.registraLance(1);
+		assertEquals(Arrays.asList(1), indice.disputadosEntre(0.0, 1000.0, 0, 10));
+	}
+
+	@Test
+	public void deveManterOsLancesAoAtualizarETirarOsLeiloesRemovidos() {
+		registra(1, 100.0, 1);
+		registra(2, 200.0, 1);
+		for (int i = 0; i < 4; i++) {
+			indice.registraLance(1);
+		}
+
+		registra(1, 500.0, 1);
+		assertEquals(Arrays.asList(1), indice.disputadosEntre(400.0, 600.0, 0, 10));
+		assertEquals(0, indice.contaPorValorInicial(50.0, 150.0));
+
+		indice.remove(1);
+		indice.remove(2);
+
+		assertEquals(0, indice.tamanho());
+		assertEquals(0, indice.contaDisputadosEntre(0.0, 1000.0));
+	}
+
+	@Test
+	public void deveMudarSoOValorInicialMantendoAberturaELances() {
+		registra(1, 100.0, 5);
+		for (int i = 0; i < 4; i++) {
+			indice.registraLance(1);
+		}
+
+		indice.alteraValorInicial(1, 700.0);
+		indice.alteraValorInicial(2, 700.0);
+
+		Calendar inicio = Calendar.getInstance();
+		inicio.add(Calendar.DAY_OF_MONTH, -10);
+		assertEquals(1, indice.tamanho());
+		assertEquals(Arrays.asList(1), indice.disputadosEntre(600.0, 800.0, 0, 10));
+		assertEquals(1, indice.contaPorPeriodo(inicio, Calendar.getInstance()));
+	}
+
+	@Test
+	public void deveOrdenarValoresNegativosEPositivos() {
+		registra(1, 10.0, 1);
+		registra(2, -5.0, 1);
+		registra(3, 0.0, 1);
+
+		assertEquals(Arrays.asList(2, 3, 1), indice.porValorInicial(-10.0, 10.0, 0, 10));
+	}
+
+	/*
+	 * O BETWEEN do banco nunca traz valor inicial nulo; o ndice tambm no.
+	 */
+	@Test
+	public void naoDeveAcharPorValorOLeilaoSemValorInicial() {
+		registra(1, 10.0, 1);
+		indice.registra(2, null, Calendar.getInstance());
+		for (int i = 0; i <= IndiceDeLeiloesAbertos.LANCES_PARA_DISPUTA; i++) {
+			indice.registraLance(2);
+		}
+
+		assertEquals(Arrays.asList(1), indice.porValorInicial(-10.0, 10.0, 0, 10));
+		assertEquals(0, indice.contaDisputadosEntre(-10.0, 10.0));
+		assertEquals(2, indice.tamanho());
+
+		indice.alteraValorInicial(2, 5.0);
+		assertEquals(Arrays.asList(2, 1), indice.porValorInicial(-10.0, 10.0, 0, 10));
+		assertEquals(Arrays.asList(2), indice.disputadosEntre(-10.0, 10.0, 0, 10));
+	}
+}
@@ -1,19 +1,27 @@
 package br.com.caelum.pm73.dominio;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
 
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.exception.ConstraintViolationException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
 import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.IndiceDeLeiloesAbertos;
 import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.RankingDeLances;
 import br.com.caelum.pm73.dao.UsuarioDao;
 
 public class LeilaoDaoTeste {
@@ -37,6 +45,12 @@ public class LeilaoDaoTeste {
 		session.close();
 	}
 
+	private Calendar diasAtras(int dias) {
+		Calendar data = Calendar.getInstance();
+		data.add(Calendar.DAY_OF_MONTH, -dias);
+		return data;
+	}
+
 	@Test
 	public void deveContarLeiloesNaoEncerrados() {
 		// criamos um usuario
@@ -130,8 +144,10 @@ public class LeilaoDaoTeste {
 
 		Leilao noLimite = new Leilao("XBox", 700.0, mauricio, false);
 
+		// um segundo antes do limite: no mesmo milissegundo da consulta ele ainda no seria antigo
 		Calendar dataAntiga = Calendar.getInstance();
 		dataAntiga.add(Calendar.DAY_OF_MONTH, -7);
+		dataAntiga.add(Calendar.SECOND, -1);
 
 		noLimite.setDataAbertura(dataAntiga);
 
@@ -234,6 +250,170 @@ public class LeilaoDaoTeste {
 		assertEquals(3200.0, leiloes.get(0).getValorInicial(), 0.00001);
 	}
 
+	@Test
+	public void deveResponderAsFaixasPeloIndiceECarregarSoAPagina() {
+		Usuario mauricio = new Usuario("Mauricio", "mauricio@aniche.com.br");
+		Usuario marcelo = new Usuario("Marcelo", "marcelo@aniche.com.br");
+
+		LeilaoBuilder disputado = new LeilaoBuilder().comDono(marcelo);
+		for (int i = 0; i < 4; i++) {
+			disputado.comLance(Calendar.getInstance(), i % 2 == 0 ? mauricio : marcelo, 3000.0 + i);
+		}
+		Leilao barato = disputado.comValor(2600.0).diasAtras(3).constroi();
+		Leilao caro = new LeilaoBuilder().comDono(mauricio).comValor(3200.0).diasAtras(2).constroi();
+
+		usuarioDao.salvar(marcelo);
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(barato);
+		leilaoDao.salvar(caro);
+
+		IndiceDeLeiloesAbertos indice = new IndiceDeLeiloesAbertos();
+		indice.carrega(session);
+		leilaoDao.comIndice(indice);
+
+		List<Leilao> disputados = leilaoDao.disputadosEntre(2500, 3500);
+		assertEquals(1, disputados.size());
+		assertEquals(barato.getId(), disputados.get(0).getId());
+		assertEquals(1L, leilaoDao.totalDisputadosEntre(2500, 3500));
+
+		Calendar inicio = Calendar.getInstance();
+		inicio.add(Calendar.DAY_OF_MONTH, -3);
+		inicio.add(Calendar.HOUR, -1);
+		Calendar fim = Calendar.getInstance();
+		fim.add(Calendar.DAY_OF_MONTH, -2);
+		assertEquals(2L, leilaoDao.totalPorPeriodo(inicio, fim));
+
+		List<Leilao> segundaPagina = leilaoDao.porPeriodo(inicio, fim, 1, 10);
+		assertEquals(1, segundaPagina.size());
+		assertEquals(caro.getId(), segundaPagina.get(0).getId());
+	}
+
+	@Test
+	public void noModoSomenteLeituraAlteracoesNaoDevemIrParaOBanco() {
+		Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		Leilao geladeira = new Leilao("Geladeira", 1500.0, mauricio, false);
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(geladeira);
+		session.flush();
+		session.clear();
+
+		Leilao lido = new LeilaoDao(session).somenteLeitura().porId(geladeira.getId());
+		lido.setNome("Fogao");
+		session.flush();
+		session.clear();
+
+		assertEquals("Geladeira", leilaoDao.porId(geladeira.getId()).getNome());
+	}
+
+	@Test
+	public void deveEncerrarPorIdsSemCarregarOsLeiloes() {
+		Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		Leilao geladeira = new LeilaoBuilder().comDono(mauricio).comLance(Calendar.getInstance(), mauricio, 10.0)
+				.constroi();
+		Leilao xbox = new LeilaoBuilder().comDono(mauricio).constroi();
+		Leilao tv = new LeilaoBuilder().comDono(mauricio).constroi();
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(geladeira);
+		leilaoDao.salvar(xbox);
+		leilaoDao.salvar(tv);
+		session.flush();
+		session.clear();
+
+		Leilao carregado = leilaoDao.porId(xbox.getId());
+		int encerrados = leilaoDao.encerra(Arrays.asList(geladeira.getId(), xbox.getId()));
+
+		assertEquals(2, encerrados);
+		assertTrue(carregado.isEncerrado());
+		assertEquals(1L, leilaoDao.total().longValue());
+		assertEquals(0, leilaoDao.encerra(Arrays.asList(geladeira.getId())));
+	}
+
+	/*
+	 * O ndice abaixo est desatualizado de propsito: s o leilo que o UPDATE
+	 * realmente encerrou pode ser tirado dele depois do commit.
+	 */
+	@Test
+	@SuppressWarnings("deprecation")
+	public void lancesDeUmLeilaoJaEncerradoNaoDevemEntrarNoRanking() {
+		SessionFactory fabrica = new CriadorDeSessao().criaConfig("jdbc:hsqldb:mem:ranking-encerrados")
+				.setProperty("hibernate.hbm2ddl.auto", "create").setProperty("hibernate.show_sql", "false")
+				.buildSessionFactory();
+		try {
+			Session outra = fabrica.openSession();
+			Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+			Usuario comprador = new Usuario("Victor", "v@v.com");
+			Leilao aberto = new LeilaoBuilder().comDono(mauricio).comLance(Calendar.getInstance(), comprador, 100.0)
+					.constroi();
+			Leilao encerrado = new LeilaoBuilder().comDono(mauricio).encerrado()
+					.comLance(Calendar.getInstance(), comprador, 200.0).constroi();
+			RankingDeLances ranking = new RankingDeLances(3);
+
+			outra.beginTransaction();
+			new UsuarioDao(outra).salvar(mauricio);
+			new UsuarioDao(outra).salvar(comprador);
+			new LeilaoDao(outra).comRanking(ranking).salvar(aberto);
+			new LeilaoDao(outra).comRanking(ranking).salvar(encerrado);
+			outra.getTransaction().commit();
+			outra.close();
+
+			assertEquals(comprador.getId(), ranking.vencedor(aberto.getId()).getUsuarioId());
+			assertNull(ranking.vencedor(encerrado.getId()));
+			assertEquals(Collections.singleton(aberto.getId()), ranking.leiloesVencidosPor(comprador.getId()));
+		} finally {
+			fabrica.close();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void encerrarPorIdsSoDeveAvisarOsLeiloesQueEstavamAbertos() {
+		SessionFactory fabrica = new CriadorDeSessao().criaConfig("jdbc:hsqldb:mem:encerra-por-ids")
+				.setProperty("hibernate.hbm2ddl.auto", "create").setProperty("hibernate.show_sql", "false")
+				.buildSessionFactory();
+		try {
+			Session outra = fabrica.openSession();
+			Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+			Leilao aberto = new LeilaoBuilder().comDono(mauricio).constroi();
+			Leilao encerrado = new LeilaoBuilder().comDono(mauricio).encerrado().constroi();
+			outra.beginTransaction();
+			new UsuarioDao(outra).salvar(mauricio);
+			new LeilaoDao(outra).salvar(aberto);
+			new LeilaoDao(outra).salvar(encerrado);
+			outra.getTransaction().commit();
+
+			IndiceDeLeiloesAbertos indice = new IndiceDeLeiloesAbertos();
+			indice.registra(aberto.getId(), 100.0, Calendar.getInstance());
+			indice.registra(encerrado.getId(), 100.0, Calendar.getInstance());
+			indice.registra(-1, 100.0, Calendar.getInstance());
+
+			outra.beginTransaction();
+			int encerrados = new LeilaoDao(outra).comIndice(indice)
+					.encerra(Arrays.asList(aberto.getId(), encerrado.getId(), -1));
+			outra.getTransaction().commit();
+			outra.close();
+
+			assertEquals(1, encerrados);
+			assertEquals(Arrays.asList(-1, encerrado.getId()), indice.porValorInicial(0.0, 200.0, 0, 10));
+		} finally {
+			fabrica.close();
+		}
+	}
+
+	@Test
+	public void deveAlterarOValorInicialComUmUnicoUpdate() {
+		Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		Leilao geladeira = new LeilaoBuilder().comDono(mauricio).comValor(1500.0).constroi();
+		usuarioDao.salvar(mauricio);
+		leilaoDao.salvar(geladeira);
+		session.flush();
+		session.clear();
+
+		assertTrue(leilaoDao.alteraValorInicial(geladeira.getId(), 1800.0));
+		assertFalse(leilaoDao.alteraValorInicial(-1, 1800.0));
+
+		assertEquals(1800.0, leilaoDao.porId(geladeira.getId()).getValorInicial(), 0.00001);
+	}
+
 	@Test
 	public void listaSomenteOsLeiloesDoUsuario() throws Exception {
 
@@ -276,6 +456,124 @@ public class LeilaoDaoTeste {
 		assertEquals(leilao, leiloes.get(0));
 	}
 
+	@Test
+	public void deveListarOsLeiloesDoUsuarioEmPaginasDoLanceMaisRecenteParaOMaisAntigo() {
+		Usuario dono = new Usuario("Mauricio", "m@a.com");
+		Usuario comprador = new Usuario("Victor", "v@v.com");
+
+		Leilao antigo = new LeilaoBuilder().comDono(dono).comLance(diasAtras(5), comprador, 100.0).constroi();
+		Leilao recente = new LeilaoBuilder().comDono(dono).comLance(diasAtras(1), comprador, 100.0).constroi();
+		// o ltimo lance do usurio  o que conta, no o primeiro
+		Leilao revisitado = new LeilaoBuilder().comDono(dono).comLance(diasAtras(9), comprador, 100.0)
+				.comLance(diasAtras(3), comprador, 200.0).constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(comprador);
+		leilaoDao.salvar(antigo);
+		leilaoDao.salvar(recente);
+		leilaoDao.salvar(revisitado);
+
+		assertEquals(Arrays.asList(recente, revisitado), leilaoDao.listaLeiloesDoUsuario(comprador, 0, 2));
+		assertEquals(Arrays.asList(antigo), leilaoDao.listaLeiloesDoUsuario(comprador, 2, 2));
+		assertTrue(leilaoDao.listaLeiloesDoUsuario(dono, 0, 2).isEmpty());
+	}
+
+	@Test
+	public void lanceGravadoPeloMergeDoLeilaoTambemDeveRegistrarAParticipacao() {
+		Usuario dono = new Usuario("Mauricio", "m@a.com");
+		Usuario comprador = new Usuario("Victor", "v@v.com");
+		Leilao leilao = new LeilaoBuilder().comDono(dono).constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(comprador);
+		leilaoDao.salvar(leilao);
+		session.flush();
+		session.clear();
+
+		// o lance chega pelo cascade do merge, sem passar por salvaLance
+		leilao.adicionaLance(new Lance(Calendar.getInstance(), comprador, 100.0, leilao));
+		leilaoDao.atualiza(leilao);
+
+		List<Leilao> leiloes = leilaoDao.listaLeiloesDoUsuario(comprador);
+		assertEquals(1, leiloes.size());
+		assertEquals(leilao.getId(), leiloes.get(0).getId());
+	}
+
+	@Test
+	public void deveRecalcularAsParticipacoesAPartirDosLances() {
+		Usuario dono = new Usuario("Mauricio", "m@a.com");
+		Usuario comprador = new Usuario("Victor", "v@v.com");
+
+		Leilao antigo = new LeilaoBuilder().comDono(dono).comLance(diasAtras(5), comprador, 100.0).constroi();
+		Leilao recente = new LeilaoBuilder().comDono(dono).comLance(diasAtras(9), comprador, 100.0)
+				.comLance(diasAtras(1), comprador, 200.0).constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(comprador);
+		leilaoDao.salvar(antigo);
+		leilaoDao.salvar(recente);
+		session.flush();
+
+		assertTrue(leilaoDao.recalculaParticipacoes() >= 2);
+		assertEquals(Arrays.asList(recente, antigo), leilaoDao.listaLeiloesDoUsuario(comprador, 0, 10));
+	}
+
+	@Test(expected = ConstraintViolationException.class)
+	public void naoDeveGravarDoisLancesComAMesmaChaveDeIdempotencia() {
+		Usuario dono = new Usuario("Mauricio", "m@a.com");
+		Usuario comprador = new Usuario("Victor", "v@v.com");
+		Leilao leilao = new LeilaoBuilder().comDono(dono).constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(comprador);
+		leilaoDao.salvar(leilao);
+
+		Lance lance = new Lance(Calendar.getInstance(), comprador, 100.0, leilao);
+		lance.setChaveDeIdempotencia("celular-1");
+		Lance repetido = new Lance(Calendar.getInstance(), comprador, 100.0, leilao);
+		repetido.setChaveDeIdempotencia("celular-1");
+		leilaoDao.salvaLance(lance);
+		leilaoDao.salvaLance(repetido);
+
+		session.flush();
+	}
+
+	@Test
+	public void deveAcharOLancePelaChaveDeIdempotencia() {
+		Usuario dono = new Usuario("Mauricio", "m@a.com");
+		Leilao leilao = new LeilaoBuilder().comDono(dono).constroi();
+		Lance lance = new Lance(Calendar.getInstance(), dono, 100.0, leilao);
+		lance.setChaveDeIdempotencia("celular-1");
+
+		usuarioDao.salvar(dono);
+		leilaoDao.salvar(leilao);
+		leilaoDao.salvaLance(lance);
+
+		assertEquals(lance, leilaoDao.lancePorChave(dono.getId(), "celular-1"));
+		assertNull(leilaoDao.lancePorChave(dono.getId(), "celular-2"));
+	}
+
+	@Test
+	public void outroUsuarioPodeUsarAMesmaChaveDeIdempotencia() {
+		Usuario dono = new Usuario("Mauricio", "m@a.com");
+		Usuario comprador = new Usuario("Victor", "v@v.com");
+		Leilao leilao = new LeilaoBuilder().comDono(dono).constroi();
+		Lance doDono = new Lance(Calendar.getInstance(), dono, 100.0, leilao);
+		doDono.setChaveDeIdempotencia("celular-1");
+		Lance doComprador = new Lance(Calendar.getInstance(), comprador, 200.0, leilao);
+		doComprador.setChaveDeIdempotencia("celular-1");
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(comprador);
+		leilaoDao.salvar(leilao);
+		leilaoDao.salvaLance(doDono);
+		leilaoDao.salvaLance(doComprador);
+		session.flush();
+
+		assertEquals(doDono, leilaoDao.lancePorChave(dono.getId(), "celular-1"));
+		assertEquals(doComprador, leilaoDao.lancePorChave(comprador.getId(), "celular-1"));
+	}
+
 	@Test
 	public void devolveAMediaDoValorInicialDosLeiloesQueOUsuarioParticipou() {
 
@@ -324,4 +622,109 @@ public class LeilaoDaoTeste {
 
 	}
 
+	@Test
+	public void deveEncerrarEmLotesOsLeiloesAbertosAntesDoLimite() {
+		Usuario dono = new Usuario("Mauricio", "m@a.com");
+
+		Leilao antigo1 = new LeilaoBuilder().comDono(dono).diasAtras(10).constroi();
+		Leilao antigo2 = new LeilaoBuilder().comDono(dono).diasAtras(9).constroi();
+		Leilao antigo3 = new LeilaoBuilder().comDono(dono).diasAtras(8).constroi();
+		Leilao antigoJaEncerrado = new LeilaoBuilder().comDono(dono).diasAtras(20).encerrado().constroi();
+		Leilao recente = new LeilaoBuilder().comDono(dono).diasAtras(1).constroi();
+
+		usuarioDao.salvar(dono);
+		leilaoDao.salvar(antigo1);
+		leilaoDao.salvar(antigo2);
+		leilaoDao.salvar(antigo3);
+		leilaoDao.salvar(antigoJaEncerrado);
+		leilaoDao.salvar(recente);
+
+		Calendar limite = Calendar.getInstance();
+		limite.add(Calendar.DAY_OF_MONTH, -7);
+
+		assertEquals(antigo1.getDataAbertura(), leilaoDao.aberturaMaisAntigaNaoEncerradaAntesDe(limite));
+
+		// o UPDATE em lote no passa pela sesso, por isso contamos direto no banco
+		assertEquals(2, leilaoDao.encerraAbertosAntesDe(limite, 2));
+		assertEquals(1, leilaoDao.encerraAbertosAntesDe(limite, 2));
+		assertEquals(0, leilaoDao.encerraAbertosAntesDe(limite, 2));
+
+		assertEquals(1L, (long) leilaoDao.total());
+	}
+
+	@Test
+	public void deveTrazerSomenteOsMaioresLancesDoLeilaoEmOrdem() {
+		Usuario dono = new Usuario("Mauricio", "m@a.com");
+		Usuario comprador = new Usuario("Victor", "v@v.com");
+
+		Leilao leilao = new LeilaoBuilder().comDono(dono).comLance(Calendar.getInstance(), comprador, 100.0)
+				.comLance(Calendar.getInstance(), comprador, 400.0).comLance(Calendar.getInstance(), comprador, 300.0)
+				.comLance(Calendar.getInstance(), comprador, 200.0).constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(comprador);
+		leilaoDao.salvar(leilao);
+
+		List<Lance> maiores = leilaoDao.maioresLances(leilao, 2);
+
+		assertEquals(2, maiores.size());
+		assertEquals(400.0, maiores.get(0).getValor(), 0.00001);
+		assertEquals(300.0, maiores.get(1).getValor(), 0.00001);
+	}
+
+	@Test
+	public void deveTrazerOsLeiloesAbertosQueOUsuarioEstaVencendo() {
+		Usuario dono = new Usuario("Mauricio", "m@a.com");
+		Usuario victor = new Usuario("Victor", "v@v.com");
+		Usuario guilherme = new Usuario("Guilherme", "g@g.com");
+
+		Leilao vencendo = new LeilaoBuilder().comDono(dono).comLance(Calendar.getInstance(), guilherme, 100.0)
+				.comLance(Calendar.getInstance(), victor, 200.0).comLance(Calendar.getInstance(), victor, 300.0)
+				.constroi();
+		Leilao perdendo = new LeilaoBuilder().comDono(dono).comLance(Calendar.getInstance(), victor, 100.0)
+				.comLance(Calendar.getInstance(), guilherme, 200.0).constroi();
+		Leilao empatadoDepois = new LeilaoBuilder().comDono(dono).comLance(Calendar.getInstance(), guilherme, 100.0)
+				.comLance(Calendar.getInstance(), victor, 100.0).constroi();
+		Leilao encerrado = new LeilaoBuilder().comDono(dono).encerrado()
+				.comLance(Calendar.getInstance(), victor, 100.0).constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(victor);
+		usuarioDao.salvar(guilherme);
+		leilaoDao.salvar(vencendo);
+		leilaoDao.salvar(perdendo);
+		leilaoDao.salvar(empatadoDepois);
+		leilaoDao.salvar(encerrado);
+
+		List<Leilao> leiloes = leilaoDao.leiloesQueOUsuarioEstaVencendo(victor);
+
+		assertEquals(1, leiloes.size());
+		assertEquals(vencendo, leiloes.get(0));
+	}
+
+	@Test
+	public void noEmpateDeveVencerOLanceDeDataMaisAntigaMesmoComIdMaior() {
+		Usuario dono = new Usuario("Mauricio", "m@a.com");
+		Usuario victor = new Usuario("Victor", "v@v.com");
+		Usuario guilherme = new Usuario("Guilherme", "g@g.com");
+
+		// o lance do Guilherme  gravado depois, com id maior, mas foi dado antes
+		Calendar ontem = Calendar.getInstance();
+		ontem.add(Calendar.DAY_OF_MONTH, -1);
+		Leilao leilao = new LeilaoBuilder().comDono(dono).comLance(Calendar.getInstance(), victor, 100.0)
+				.comLance(ontem, guilherme, 100.0).constroi();
+
+		usuarioDao.salvar(dono);
+		usuarioDao.salvar(victor);
+		usuarioDao.salvar(guilherme);
+		leilaoDao.salvar(leilao);
+
+		List<Lance> maiores = leilaoDao.maioresLances(leilao, 2);
+
+		assertEquals(guilherme, maiores.get(0).getUsuario());
+		assertTrue(maiores.get(0).getId() > maiores.get(1).getId());
+		assertEquals(1, leilaoDao.leiloesQueOUsuarioEstaVencendo(guilherme).size());
+		assertTrue(leilaoDao.leiloesQueOUsuarioEstaVencendo(victor).isEmpty());
+	}
+
 }
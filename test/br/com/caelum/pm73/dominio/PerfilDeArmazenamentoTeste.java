@@ -0,0 +1,133 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.PerfilDeArmazenamento;
+import br.com.caelum.pm73.dao.UsuarioDao;
+
+@SuppressWarnings("deprecation")
+public class PerfilDeArmazenamentoTeste {
+
+	private File diretorio;
+	private String url;
+	private SessionFactory fabrica;
+
+	@Before
+	public void antes() throws Exception {
+		diretorio = File.createTempFile("armazenamento", "");
+		diretorio.delete();
+		diretorio.mkdir();
+		url = "jdbc:hsqldb:file:" + new File(diretorio, "banco").getAbsolutePath() + ";shutdown=true";
+
+		fabrica = new CriadorDeSessao().criaConfig(url).setProperty("hibernate.hbm2ddl.auto", "create")
+				.buildSessionFactory();
+	}
+
+	@After
+	public void depois() {
+		fabrica.close();
+		for (File arquivo : diretorio.listFiles()) {
+			apaga(arquivo);
+		}
+		diretorio.delete();
+	}
+
+	private void apaga(File arquivo) {
+		if (arquivo.isDirectory()) {
+			for (File filho : arquivo.listFiles()) {
+				apaga(filho);
+			}
+		}
+		arquivo.delete();
+	}
+
+	@Test
+	public void deveMigrarAsTabelasParaCachedSemPerderDados() {
+		Session session = fabrica.openSession();
+		session.beginTransaction();
+		new UsuarioDao(session).salvar(new Usuario("Mauricio Aniche", "mauricio@aniche.com.br"));
+		session.getTransaction().commit();
+		session.close();
+		assertEquals("[MEMORY]", tiposDasTabelas(fabrica));
+
+		PerfilDeArmazenamento.DISCO_COM_CACHE.prepara(fabrica);
+		fabrica.close();
+
+		// reabre o banco do zero para ver o que ficou gravado
+		fabrica = new CriadorDeSessao().criaConfig(url).buildSessionFactory();
+		assertEquals("[CACHED]", tiposDasTabelas(fabrica));
+
+		session = fabrica.openSession();
+		Usuario doBanco = new UsuarioDao(session).porNomeEEmail("Mauricio Aniche", "mauricio@aniche.com.br");
+		session.close();
+		assertEquals("Mauricio Aniche", doBanco.getNome());
+
+		PerfilDeArmazenamento.MEMORIA.prepara(fabrica);
+		assertEquals("[MEMORY]", tiposDasTabelas(fabrica));
+	}
+
+	@Test
+	public void voltarParaMemoriaDeveDesfazerOsAjustesDoDiscoComCache() {
+		PerfilDeArmazenamento.DISCO_COM_CACHE.prepara(fabrica);
+		fabrica.close();
+
+		fabrica = new CriadorDeSessao().criaConfig(url).buildSessionFactory();
+		PerfilDeArmazenamento.MEMORIA.prepara(fabrica);
+		fabrica.close();
+
+		// reabre e deixa o hbm2ddl criar as tabelas de novo com o tipo padro
+		fabrica = new CriadorDeSessao().criaConfig(url).setProperty("hibernate.hbm2ddl.auto", "create")
+				.buildSessionFactory();
+		assertEquals("[MEMORY]", tiposDasTabelas(fabrica));
+		assertEquals("memory", propriedade("hsqldb.default_table_type"));
+		assertEquals("50000", propriedade("hsqldb.cache_rows"));
+		assertEquals("10000", propriedade("hsqldb.cache_size"));
+		assertEquals("268435456", propriedade("hsqldb.nio_max_size"));
+		assertEquals("50", propriedade("hsqldb.log_size"));
+		assertEquals("500", propriedade("hsqldb.write_delay_millis"));
+	}
+
+	@Test
+	public void deveAcharOPerfilPeloNome() {
+		assertEquals(PerfilDeArmazenamento.MEMORIA, PerfilDeArmazenamento.porNome("memory"));
+		assertEquals(PerfilDeArmazenamento.DISCO_COM_CACHE, PerfilDeArmazenamento.porNome("cached-disk"));
+		assertEquals(PerfilDeArmazenamento.TESTE_EM_MEMORIA, PerfilDeArmazenamento.porNome("in-memory-test"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void naoDeveAceitarPerfilDesconhecido() {
+		PerfilDeArmazenamento.porNome("disco");
+	}
+
+	private String propriedade(String nome) {
+		Session session = fabrica.openSession();
+		try {
+			return (String) session.createSQLQuery("SELECT PROPERTY_VALUE FROM INFORMATION_SCHEMA.SYSTEM_PROPERTIES "
+					+ "WHERE PROPERTY_NAME = :nome").setParameter("nome", nome).uniqueResult();
+		} finally {
+			session.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private String tiposDasTabelas(SessionFactory fabrica) {
+		Session session = fabrica.openSession();
+		try {
+			List<String> tipos = session.createSQLQuery("SELECT DISTINCT HSQLDB_TYPE FROM "
+					+ "INFORMATION_SCHEMA.SYSTEM_TABLES WHERE TABLE_SCHEM = 'PUBLIC' AND TABLE_TYPE = 'TABLE'").list();
+			return tipos.toString();
+		} finally {
+			session.close();
+		}
+	}
+}
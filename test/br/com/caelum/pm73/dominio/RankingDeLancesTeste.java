@@ -0,0 +1,104 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.LanceNoRanking;
+import br.com.caelum.pm73.dao.RankingDeLances;
+
+public class RankingDeLancesTeste {
+
+	private RankingDeLances ranking;
+
+	@Before
+	public void antes() {
+		ranking = new RankingDeLances(3);
+	}
+
+	@Test
+	public void deveManterSomenteOsMaioresLancesEmOrdem() {
+		ranking.registra(1, new LanceNoRanking(10, 100, 200.0, 10));
+		ranking.registra(1, new LanceNoRanking(11, 101, 500.0, 11));
+		ranking.registra(1, new LanceNoRanking(12, 100, 100.0, 12));
+		ranking.registra(1, new LanceNoRanking(13, 102, 300.0, 13));
+		ranking.registra(1, new LanceNoRanking(14, 101, 50.0, 14));
+
+		List<LanceNoRanking> maiores = ranking.maiores(1);
+
+		assertEquals(3, maiores.size());
+		assertEquals(500.0, maiores.get(0).getValor(), 0.00001);
+		assertEquals(300.0, maiores.get(1).getValor(), 0.00001);
+		assertEquals(200.0, maiores.get(2).getValor(), 0.00001);
+	}
+
+	@Test
+	public void noEmpateDeveVencerOLanceMaisAntigo() {
+		ranking.registra(1, new LanceNoRanking(10, 100, 200.0, 10));
+		ranking.registra(1, new LanceNoRanking(11, 101, 200.0, 11));
+
+		assertEquals(100, ranking.vencedor(1).getUsuarioId());
+	}
+
+	@Test
+	public void noEmpateDeveVencerOLanceDeDataMaisAntigaMesmoComIdMaior() {
+		// ids de blocos de JVMs diferentes: o 900 foi dado antes do 10
+		ranking.registra(1, new LanceNoRanking(10, 100, 200.0, 2000));
+		ranking.registra(1, new LanceNoRanking(900, 101, 200.0, 1000));
+
+		assertEquals(101, ranking.vencedor(1).getUsuarioId());
+		assertEquals(900, ranking.maiores(1).get(0).getLanceId());
+	}
+
+	@Test
+	public void deveAcompanharOsLeiloesQueCadaUsuarioEstaVencendo() {
+		ranking.registra(1, new LanceNoRanking(10, 100, 200.0, 10));
+		ranking.registra(2, new LanceNoRanking(20, 100, 200.0, 20));
+		assertEquals(2, ranking.leiloesVencidosPor(100).size());
+
+		ranking.registra(1, new LanceNoRanking(11, 101, 300.0, 11));
+
+		assertEquals(1, ranking.leiloesVencidosPor(100).size());
+		assertTrue(ranking.leiloesVencidosPor(100).contains(2));
+		assertTrue(ranking.leiloesVencidosPor(101).contains(1));
+	}
+
+	@Test
+	public void deveEsquecerOLeilaoRemovido() {
+		ranking.registra(1, new LanceNoRanking(10, 100, 200.0, 10));
+
+		ranking.remove(1);
+
+		assertNull(ranking.vencedor(1));
+		assertTrue(ranking.maiores(1).isEmpty());
+		assertTrue(ranking.leiloesVencidosPor(100).isEmpty());
+	}
+
+	/*
+	 * O commit do lance terminou depois do encerramento do leilo.
+	 */
+	@Test
+	public void naoDeveRecriarOPodioDeUmLeilaoRemovido() {
+		ranking.registra(1, new LanceNoRanking(10, 100, 200.0, 10));
+		ranking.remove(1);
+
+		ranking.registra(1, new LanceNoRanking(11, 101, 300.0, 20));
+
+		assertNull(ranking.vencedor(1));
+		assertTrue(ranking.maiores(1).isEmpty());
+		assertTrue(ranking.leiloesVencidosPor(101).isEmpty());
+	}
+
+	@Test
+	public void naoDeveContarDuasVezesOMesmoLance() {
+		ranking.registra(1, new LanceNoRanking(10, 100, 200.0, 10));
+		ranking.registra(1, new LanceNoRanking(10, 100, 200.0, 10));
+
+		assertEquals(1, ranking.maiores(1).size());
+	}
+}
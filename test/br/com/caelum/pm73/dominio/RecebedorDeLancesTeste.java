@@ -0,0 +1,191 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.CacheDeIdempotencia;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.UsuarioDao;
+import br.com.caelum.pm73.servico.RecebedorDeLances;
+
+public class RecebedorDeLancesTeste {
+
+	private CriadorDeSessao criador;
+	private Usuario mauricio;
+	private Usuario victor;
+	private Leilao leilao;
+
+	@Before
+	public void antes() {
+		criador = new CriadorDeSessao();
+		mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		victor = new Usuario("Victor Harada", "victor@harada.com.br");
+		leilao = new LeilaoBuilder().comDono(mauricio).comNome("Playstation").constroi();
+
+		Session session = criador.getSession();
+		session.beginTransaction();
+		new UsuarioDao(session).salvar(mauricio);
+		new UsuarioDao(session).salvar(victor);
+		new LeilaoDao(session).salvar(leilao);
+		session.getTransaction().commit();
+		session.close();
+	}
+
+	// o recebedor commita, ento apagamos tudo para no deixar sujeira para os outros testes
+	@After
+	public void depois() {
+		Session session = criador.getSession();
+		session.beginTransaction();
+		new LeilaoDao(session).deleta((Leilao) session.get(Leilao.class, leilao.getId()));
+		new UsuarioDao(session).deletar((Usuario) session.get(Usuario.class, mauricio.getId()));
+		new UsuarioDao(session).deletar((Usuario) session.get(Usuario.class, victor.getId()));
+		session.getTransaction().commit();
+		session.close();
+	}
+
+	@Test
+	public void deveResponderARepeticaoDaMesmaChaveSemGravarOutroLance() {
+		CacheDeIdempotencia cache = new CacheDeIdempotencia(100, 5, TimeUnit.MINUTES);
+		RecebedorDeLances recebedor = new RecebedorDeLances(criador, cache);
+
+		int primeiro = recebedor.recebe("celular-1", leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+		int repetido = recebedor.recebe("celular-1", leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+		int outro = recebedor.recebe("celular-2", leilao.getId(), mauricio.getId(), 150.0, Calendar.getInstance());
+
+		assertEquals(primeiro, repetido);
+		assertTrue(outro != primeiro);
+		assertEquals(1, recebedor.getRepeticoes());
+		assertEquals(1, cache.getAcertos());
+		assertEquals(2, lancesDoLeilao());
+	}
+
+	@Test
+	public void deveAcharNoBancoOLanceDeUmaChaveQueOCacheNaoConhece() {
+		RecebedorDeLances umRecebedor = new RecebedorDeLances(criador, new CacheDeIdempotencia(100, 5, TimeUnit.MINUTES));
+		// outro cache faz o papel de outra JVM, ou de uma repetio fora da janela
+		RecebedorDeLances outroRecebedor = new RecebedorDeLances(criador, new CacheDeIdempotencia(100, 5, TimeUnit.MINUTES));
+
+		int primeiro = umRecebedor.recebe("celular-1", leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+		int repetido = outroRecebedor.recebe("celular-1", leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+
+		assertEquals(primeiro, repetido);
+		assertEquals(1, outroRecebedor.getRepeticoes());
+		assertEquals(1, lancesDoLeilao());
+	}
+
+	/*
+	 * As duas tentativas passam pela consulta da chave antes de qualquer uma
+	 * inserir: quem decide  a restrio nica, e quem perde devolve o lance
+	 * de quem ganhou.
+	 */
+	@Test
+	public void tentativasSimultaneasComAMesmaChaveDevemGravarUmLanceSo() throws Exception {
+		final CyclicBarrier antesDeInserir = new CyclicBarrier(2);
+		final CriadorDeSessao sincronizado = new CriadorDeSessao() {
+			@Override
+			public Session getSession() {
+				SessionFactory fabrica = criador.getSession().getSessionFactory();
+				return fabrica.withOptions().interceptor(new EmptyInterceptor() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					public String onPrepareStatement(String sql) {
+						if (sql.toLowerCase().startsWith("insert into lance")) {
+							try {
+								antesDeInserir.await(5, TimeUnit.SECONDS);
+							} catch (Exception e) {
+								throw new IllegalStateException(e);
+							}
+						}
+						return sql;
+					}
+				}).openSession();
+			}
+		};
+
+		final int[] ids = new int[2];
+		final List<Exception> erros = Collections.synchronizedList(new ArrayList<Exception>());
+		Thread[] tentativas = new Thread[2];
+		for (int i = 0; i < tentativas.length; i++) {
+			final int tentativa = i;
+			tentativas[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						// cada tentativa com seu cache, como duas JVMs
+						ids[tentativa] = new RecebedorDeLances(sincronizado, new CacheDeIdempotencia(100, 5,
+								TimeUnit.MINUTES)).recebe("celular-1", leilao.getId(), mauricio.getId(), 100.0,
+								Calendar.getInstance());
+					} catch (Exception e) {
+						erros.add(e);
+					}
+				}
+			});
+			tentativas[i].start();
+		}
+		for (Thread tentativa : tentativas) {
+			tentativa.join(10000);
+		}
+
+		assertEquals(Collections.emptyList(), erros);
+		assertEquals(ids[0], ids[1]);
+		assertEquals(1, lancesDoLeilao());
+	}
+
+	@Test
+	public void aMesmaChaveDeOutroUsuarioDeveVirarOutroLance() {
+		RecebedorDeLances recebedor = new RecebedorDeLances(criador, new CacheDeIdempotencia(100, 5, TimeUnit.MINUTES));
+
+		int doMauricio = recebedor.recebe("celular-1", leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+		int doVictor = recebedor.recebe("celular-1", leilao.getId(), victor.getId(), 100.0, Calendar.getInstance());
+
+		assertTrue(doVictor != doMauricio);
+		assertEquals(0, recebedor.getRepeticoes());
+		assertEquals(2, lancesDoLeilao());
+	}
+
+	@Test
+	public void deveRecusarARepeticaoDaChaveComOutroValor() {
+		RecebedorDeLances recebedor = new RecebedorDeLances(criador, new CacheDeIdempotencia(100, 5, TimeUnit.MINUTES));
+		recebedor.recebe("celular-1", leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+
+		try {
+			recebedor.recebe("celular-1", leilao.getId(), mauricio.getId(), 200.0, Calendar.getInstance());
+			fail("a chave j era de um lance de 100");
+		} catch (IllegalArgumentException e) {
+			assertEquals(0, recebedor.getRepeticoes());
+			assertEquals(1, lancesDoLeilao());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void naoDeveAceitarLanceSemChave() {
+		new RecebedorDeLances(criador, new CacheDeIdempotencia(100, 5, TimeUnit.MINUTES)).recebe("",
+				leilao.getId(), mauricio.getId(), 100.0, Calendar.getInstance());
+	}
+
+	private long lancesDoLeilao() {
+		Session session = criador.getSession();
+		try {
+			return (Long) session.createQuery("select count(l) from Lance l where l.leilao.id = :leilao")
+					.setParameter("leilao", leilao.getId()).uniqueResult();
+		} finally {
+			session.close();
+		}
+	}
+}
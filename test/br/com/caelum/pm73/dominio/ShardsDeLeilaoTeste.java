@@ -0,0 +1,217 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
+import br.com.caelum.pm73.dao.LeilaoDaoDistribuido;
+import br.com.caelum.pm73.dao.ShardsDeLeilao;
+
+public class ShardsDeLeilaoTeste {
+
+	private File diretorio;
+	private List<String> urls;
+	private ShardsDeLeilao shards;
+	private LeilaoDaoDistribuido leilaoDao;
+
+	@Before
+	public void antes() throws Exception {
+		diretorio = File.createTempFile("shards", "");
+		diretorio.delete();
+		diretorio.mkdir();
+
+		urls = new ArrayList<String>();
+		for (int i = 0; i < 3; i++) {
+			urls.add("jdbc:hsqldb:file:" + new File(diretorio, "shard" + i).getAbsolutePath() + ";shutdown=true");
+		}
+		shards = new ShardsDeLeilao(new CriadorDeSessao(), urls);
+		leilaoDao = new LeilaoDaoDistribuido(shards);
+	}
+
+	@After
+	public void depois() {
+		shards.fecha();
+		for (File arquivo : diretorio.listFiles()) {
+			apaga(arquivo);
+		}
+		diretorio.delete();
+	}
+
+	private void apaga(File arquivo) {
+		if (arquivo.isDirectory()) {
+			for (File filho : arquivo.listFiles()) {
+				apaga(filho);
+			}
+		}
+		arquivo.delete();
+	}
+
+	@Test
+	public void asThreadsDosShardsNaoDevemSegurarAJvm() {
+		List<Boolean> daemons = shards.emTodos(new ShardsDeLeilao.TrabalhoNoShard<Boolean>() {
+			public Boolean executa(Session session) {
+				return Thread.currentThread().isDaemon();
+			}
+		});
+
+		assertEquals(3, daemons.size());
+		for (Boolean daemon : daemons) {
+			assertTrue(daemon);
+		}
+	}
+
+	/*
+	 * Outra instncia nos mesmos bancos faz o papel de outra JVM. O bloco que a
+	 * primeira reservou no tem mais nenhum leilo na tabela, mas continua
+	 * sendo dela.
+	 */
+	@Test
+	public void outraInstanciaNaoDeveReusarOBlocoQueAPrimeiraJaReservou() {
+		Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		shards.salvaUsuario(mauricio);
+		Leilao primeiro = salvaNoPrimeiroShard(shards, new LeilaoBuilder().comDono(mauricio).constroi());
+		leilaoDao.deleta(primeiro);
+
+		ShardsDeLeilao outros = new ShardsDeLeilao(new CriadorDeSessao(), urls);
+		try {
+			Leilao daOutra = salvaNoPrimeiroShard(outros, new LeilaoBuilder().comDono(mauricio).constroi());
+			Leilao segundo = salvaNoPrimeiroShard(shards, new LeilaoBuilder().comDono(mauricio).constroi());
+
+			assertEquals(primeiro.getId() + 1, segundo.getId());
+			assertTrue(daOutra.getId() > segundo.getId());
+			assertEquals(0, shards.shardDoLeilao(daOutra.getId()));
+		} finally {
+			outros.fecha();
+		}
+	}
+
+	private Leilao salvaNoPrimeiroShard(ShardsDeLeilao emQuais, final Leilao leilao) {
+		return emQuais.noShard(0, new ShardsDeLeilao.TrabalhoNoShard<Leilao>() {
+			public Leilao executa(Session session) {
+				new LeilaoDao(session).salvar(leilao);
+				return leilao;
+			}
+		});
+	}
+
+	@Test
+	public void deveEspalharOsLeiloesEAcharCadaUmPeloId() {
+		Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		shards.salvaUsuario(mauricio);
+
+		List<Leilao> salvos = new ArrayList<Leilao>();
+		for (int i = 0; i < 6; i++) {
+			Leilao leilao = new LeilaoBuilder().comDono(mauricio).comNome("Leilao " + i).constroi();
+			leilaoDao.salvar(leilao);
+			salvos.add(leilao);
+		}
+
+		boolean[] usados = new boolean[3];
+		for (Leilao leilao : salvos) {
+			usados[shards.shardDoLeilao(leilao.getId())] = true;
+			Leilao doBanco = leilaoDao.porId(leilao.getId());
+			assertNotNull(doBanco);
+			assertEquals(leilao.getNome(), doBanco.getNome());
+		}
+		assertEquals(true, usados[0] && usados[1] && usados[2]);
+		assertEquals(6L, leilaoDao.total().longValue());
+
+		leilaoDao.deleta(salvos.get(0));
+		assertNull(leilaoDao.porId(salvos.get(0).getId()));
+		assertEquals(5L, leilaoDao.total().longValue());
+	}
+
+	@Test
+	public void deveJuntarAsConsultasDeTodosOsShards() {
+		Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		Usuario marcelo = new Usuario("Marcelo Ribeiro", "marcelo@ribeiro.com.br");
+		shards.salvaUsuario(mauricio);
+		shards.salvaUsuario(marcelo);
+
+		Leilao geladeira = new LeilaoBuilder().comDono(mauricio).comValor(1000.0).diasAtras(10)
+				.comLance(Calendar.getInstance(), marcelo, 1100.0).constroi();
+		Leilao xbox = new LeilaoBuilder().comDono(mauricio).comValor(500.0).diasAtras(1).usado()
+				.comLance(Calendar.getInstance(), marcelo, 600.0).constroi();
+		Leilao tv = new LeilaoBuilder().comDono(mauricio).comValor(3000.0).diasAtras(1).encerrado().constroi();
+		leilaoDao.salvar(geladeira);
+		leilaoDao.salvar(xbox);
+		leilaoDao.salvar(tv);
+
+		assertEquals(1, leilaoDao.antigos().size());
+		assertEquals(2, leilaoDao.novos().size());
+		assertEquals(750.0, leilaoDao.getValorInicialMedioDoUsuario(marcelo), 0.00001);
+
+		leilaoDao.deletaEncerrados();
+		assertEquals(2L, leilaoDao.total().longValue());
+	}
+
+	/*
+	 * O avg ignora o leilo sem valor inicial; a mdia dos shards tambm.
+	 */
+	@Test
+	public void aMediaDosShardsDeveIgnorarLeiloesSemValorInicial() {
+		Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		Usuario marcelo = new Usuario("Marcelo Ribeiro", "marcelo@ribeiro.com.br");
+		shards.salvaUsuario(mauricio);
+		shards.salvaUsuario(marcelo);
+
+		Leilao geladeira = new LeilaoBuilder().comDono(mauricio).comValor(1000.0)
+				.comLance(Calendar.getInstance(), marcelo, 1100.0).constroi();
+		Leilao xbox = new LeilaoBuilder().comDono(mauricio).comValor(500.0)
+				.comLance(Calendar.getInstance(), marcelo, 600.0).constroi();
+		Leilao semValor = new LeilaoBuilder().comDono(mauricio)
+				.comLance(Calendar.getInstance(), marcelo, 100.0).constroi();
+		semValor.setValorInicial(null);
+		leilaoDao.salvar(geladeira);
+		leilaoDao.salvar(xbox);
+		leilaoDao.salvar(semValor);
+
+		assertEquals(750.0, leilaoDao.getValorInicialMedioDoUsuario(marcelo), 0.00001);
+	}
+
+	@Test
+	public void deveApagarAsParticipacoesJuntoComOUsuario() {
+		Usuario mauricio = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		Usuario marcelo = new Usuario("Marcelo Ribeiro", "marcelo@ribeiro.com.br");
+		shards.salvaUsuario(mauricio);
+		shards.salvaUsuario(marcelo);
+		for (int i = 0; i < 3; i++) {
+			Leilao leilao = new LeilaoBuilder().comDono(mauricio).comValor(100.0)
+					.comLance(Calendar.getInstance(), marcelo, 200.0).constroi();
+			leilaoDao.salvar(leilao);
+			// o lance sai pelo orphanRemoval, mas a participao do marcelo fica
+			leilao.getLances().clear();
+			leilaoDao.atualiza(leilao);
+		}
+
+		assertEquals(3L, participacoesDe(marcelo));
+		shards.deletaUsuario(marcelo);
+		assertEquals(0L, participacoesDe(marcelo));
+	}
+
+	private long participacoesDe(final Usuario usuario) {
+		long total = 0;
+		for (Long parcial : shards.emTodos(new ShardsDeLeilao.TrabalhoNoShard<Long>() {
+			public Long executa(Session session) {
+				return (Long) session.createQuery("select count(p) from Participacao p where p.chave.usuarioId = :id")
+						.setParameter("id", usuario.getId()).uniqueResult();
+			}
+		})) {
+			total += parcial;
+		}
+		return total;
+	}
+}
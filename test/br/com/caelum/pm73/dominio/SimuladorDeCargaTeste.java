@@ -0,0 +1,47 @@
+package br.com.caelum.pm73.dominio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.SessionFactory;
+import org.junit.Test;
+
+import br.com.caelum.pm73.carga.EstatisticasDaOperacao;
+import br.com.caelum.pm73.carga.OperacaoDeCarga;
+import br.com.caelum.pm73.carga.SimuladorDeCarga;
+import br.com.caelum.pm73.dao.CriadorDeSessao;
+
+@SuppressWarnings("deprecation")
+public class SimuladorDeCargaTeste {
+
+	@Test
+	public void deveRodarTodasAsOperacoesComVariasThreadsSemErros() throws Exception {
+		SessionFactory fabrica = new CriadorDeSessao().criaConfig("jdbc:hsqldb:mem:carga-teste")
+				.setProperty("hibernate.hbm2ddl.auto", "create").setProperty("hibernate.show_sql", "false")
+				.buildSessionFactory();
+		try {
+			Map<OperacaoDeCarga, EstatisticasDaOperacao> estatisticas = new SimuladorDeCarga(fabrica).comThreads(4)
+					.comDuracao(1, TimeUnit.SECONDS).comLeiloes(50, 5, 0.8).comUsuarios(10).executa();
+
+			for (OperacaoDeCarga operacao : OperacaoDeCarga.values()) {
+				EstatisticasDaOperacao estatistica = estatisticas.get(operacao);
+				assertEquals(operacao + " teve erros", 0, estatistica.getErros());
+				assertTrue(operacao + " no rodou", estatistica.getSucessos() > 0);
+			}
+		} finally {
+			fabrica.close();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void naoDeveRodarComTodosOsPesosZerados() throws Exception {
+		SimuladorDeCarga simulador = new SimuladorDeCarga(null);
+		for (OperacaoDeCarga operacao : OperacaoDeCarga.values()) {
+			simulador.comPeso(operacao, 0);
+		}
+		simulador.executa();
+	}
+}
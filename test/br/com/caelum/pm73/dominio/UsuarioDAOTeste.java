@@ -1,15 +1,23 @@
 package br.com.caelum.pm73.dominio;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.JDBCException;
 import org.hibernate.Session;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import br.com.caelum.pm73.dao.CacheDeUsuarios;
 import br.com.caelum.pm73.dao.CriadorDeSessao;
+import br.com.caelum.pm73.dao.LeilaoDao;
 import br.com.caelum.pm73.dao.UsuarioDao;
 
 /**
@@ -170,4 +178,108 @@ public class UsuarioDAOTeste {
 		assertNull(usuarioInexistente);
 
 	}
+
+	@Test
+	public void deveResponderPeloCacheNaSegundaBusca() {
+		CacheDeUsuarios cache = new CacheDeUsuarios(100, 10, 1, TimeUnit.MINUTES);
+		dao.comCache(cache);
+
+		Usuario usuario = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		dao.salvar(usuario);
+
+		dao.porNomeEEmail("Mauricio Aniche", "mauricio@aniche.com.br");
+		Usuario doCache = dao.porNomeEEmail("Mauricio Aniche", "mauricio@aniche.com.br");
+
+		assertEquals(usuario.getId(), doCache.getId());
+		assertEquals(1L, cache.getAcertos());
+		assertEquals(1L, cache.getFaltas());
+	}
+
+	/*
+	 * O usurio inexistente fica guardado no cache, mas cadastr-lo precisa
+	 * apagar essa resposta; seno continuaramos devolvendo null.
+	 */
+	@Test
+	public void deveEsquecerUsuarioInexistenteQuandoEleForCadastrado() {
+		CacheDeUsuarios cache = new CacheDeUsuarios(100, 10, 1, TimeUnit.MINUTES);
+		dao.comCache(cache);
+
+		assertNull(dao.porNomeEEmail("Mauricio Aniche", "mauricio@aniche.com.br"));
+		assertNull(dao.porNomeEEmail("Mauricio Aniche", "mauricio@aniche.com.br"));
+		assertEquals(1L, cache.getAcertos());
+
+		dao.salvar(new Usuario("Mauricio Aniche", "mauricio@aniche.com.br"));
+
+		assertNotNull(dao.porNomeEEmail("Mauricio Aniche", "mauricio@aniche.com.br"));
+	}
+
+	@Test
+	public void deveEsquecerONomeAntigoAoAlterarUmUsuario() {
+		CacheDeUsuarios cache = new CacheDeUsuarios(100, 10, 1, TimeUnit.MINUTES);
+		dao.comCache(cache);
+
+		Usuario usuario = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		dao.salvar(usuario);
+		assertNotNull(dao.porNomeEEmail("Mauricio Aniche", "mauricio@aniche.com.br"));
+
+		usuario.setNome("Maurcio Aniche");
+		dao.atualizar(usuario);
+		session.flush();
+
+		assertNull(dao.porNomeEEmail("Mauricio Aniche", "mauricio@aniche.com.br"));
+		assertNotNull(dao.porNomeEEmail("Maurcio Aniche", "mauricio@aniche.com.br"));
+	}
+
+	@Test
+	public void deveRenomearSemMergeEManterOCacheCoerente() {
+		UsuarioDao comCache = new UsuarioDao(session)
+				.comCache(new CacheDeUsuarios(100, 1, 1, TimeUnit.MINUTES));
+		Usuario usuario = new Usuario("Mauricio Aniche", "mauricio@aniche.com.br");
+		comCache.salvar(usuario);
+		assertNull(comCache.porNomeEEmail("Mauricio", "mauricio@aniche.com.br"));
+
+		assertTrue(comCache.renomeia(usuario.getId(), "Mauricio"));
+
+		assertEquals("Mauricio", usuario.getNome());
+		assertEquals(usuario.getId(), comCache.porNomeEEmail("Mauricio", "mauricio@aniche.com.br").getId());
+		assertNull(comCache.porNomeEEmail("Mauricio Aniche", "mauricio@aniche.com.br"));
+		assertFalse(comCache.renomeia(-1, "Ninguem"));
+	}
+
+	@Test(expected = JDBCException.class)
+	public void sessaoSomenteLeituraNaoDeveGravar() {
+		Session leitura = new CriadorDeSessao().getSessionSomenteLeitura();
+		try {
+			leitura.beginTransaction();
+			new UsuarioDao(leitura).salvar(new Usuario("Mauricio Aniche", "mauricio@aniche.com.br"));
+			// com o id vindo da sequncia o INSERT s sai no flush, que a sesso no faz sozinha
+			leitura.flush();
+		} finally {
+			leitura.getTransaction().rollback();
+			leitura.close();
+		}
+	}
+
+	@Test
+	public void deletarDeveApagarAsParticipacoesDoUsuario() {
+		Usuario dono = new Usuario("Mauricio", "m@a.com");
+		Usuario comprador = new Usuario("Victor", "v@v.com");
+		Leilao leilao = new LeilaoBuilder().comDono(dono).comLance(Calendar.getInstance(), comprador, 100.0)
+				.constroi();
+
+		dao.salvar(dono);
+		dao.salvar(comprador);
+		LeilaoDao leilaoDao = new LeilaoDao(session);
+		leilaoDao.salvar(leilao);
+		// o lance sai pelo orphanRemoval, mas a participao do comprador fica
+		leilao.getLances().clear();
+		leilaoDao.atualiza(leilao);
+		session.flush();
+
+		dao.deletar(comprador);
+		session.flush();
+
+		assertEquals(0L, session.createQuery("select count(p) from Participacao p where p.chave.usuarioId = :usuario")
+				.setParameter("usuario", comprador.getId()).uniqueResult());
+	}
 }